@@ -0,0 +1,192 @@
+package com.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Long-lived connection to the ack listener of one client (ack.mode).
+ *
+ * A client advertises the port of its listener in its HELLO, and the acks of everything it sends
+ * go back to the address it connected from on that port, so several clients can share a server.
+ * Clients that do not advertise one get their acks on server.host:ack.port, as before.
+ *
+ * Acks are queued and written together, one "filename=status" line each, once
+ * ack.batch.max.lines (Defaults to 100) are waiting or the oldest one waited ack.batch.linger.ms
+ * (Defaults to 20). The socket stays open for all of them and is reopened on the next batch
+ * after a failure; a batch that cannot be delivered after ack.channel.retries (Defaults to 1)
+ * reconnects is dropped, its files stay in the client's directory and are sent again once their
+ * acks are overdue (ack.expiry.ms on the client).
+ *
+ * A channel that dropped a batch, or had nothing to send for ack.channel.idle.ms (Defaults to
+ * 60000), is closed and its writer thread ends, so clients that went away do not keep a socket
+ * and a thread. An ack sent to a closed channel goes to a new one for the same listener.
+ */
+public class AckChannel {
+
+    // Keyed by "host:port" of the client's ack listener
+    private static final Map<String, AckChannel> channels = new ConcurrentHashMap<>();
+
+    private final Properties config;
+    private final String host;
+    private final int port;
+    private final int maxLines;
+    private final long lingerNanos;
+    private final int retries;
+    private final long idleNanos;
+    // Guarded by this
+    private List<String> pending = new ArrayList<>();
+    private boolean closed;
+    // Only used by the writer thread
+    private Socket socket;
+    private Writer out;
+
+    private AckChannel(Properties config, String host, int port) {
+        this.config = config;
+        this.host = host;
+        this.port = port;
+        this.maxLines = Math.max(1, Integer.parseInt(config.getProperty("ack.batch.max.lines", "100")));
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getProperty("ack.batch.linger.ms", "20")));
+        this.retries = Integer.parseInt(config.getProperty("ack.channel.retries", "1"));
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getProperty("ack.channel.idle.ms", "60000")));
+
+        Thread writer = new Thread(this::writeLoop, "ack-channel-" + host + ":" + port);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static AckChannel forClient(Properties config, String host, int port) {
+        return channels.computeIfAbsent(address(host, port), address -> new AckChannel(config, host, port));
+    }
+
+    // Channel for clients that did not advertise their ack listener
+    public static AckChannel configured(Properties config) {
+        return forClient(config, config.getProperty("server.host"), Integer.parseInt(config.getProperty("ack.port", "9090")));
+    }
+
+    // Whether a channel to the listener is open, for tests
+    static boolean isOpen(String host, int port) {
+        return channels.containsKey(address(host, port));
+    }
+
+    private static String address(String host, int port) {
+        return host + ":" + port;
+    }
+
+    // Never blocks on the network, the line goes out with the next batch
+    public void send(String acknowledgment) {
+        synchronized (this) {
+            if (!closed) {
+                pending.add(acknowledgment);
+                if (pending.size() == 1 || pending.size() >= maxLines) {
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        forClient(config, host, port).send(acknowledgment);
+    }
+
+    private void writeLoop() {
+        try {
+            List<String> batch;
+            while ((batch = takeBatch()) != null) {
+                if (!write(batch)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Lines queued after the channel gave up on its listener get another try on a new channel
+            List<String> unsent = close();
+            disconnect();
+            unsent.forEach(acknowledgment -> forClient(config, host, port).send(acknowledgment));
+        }
+    }
+
+    // Waits for the first line, then until the batch is full or has lingered long enough. null once
+    // the channel was idle for ack.channel.idle.ms.
+    private synchronized List<String> takeBatch() throws InterruptedException {
+        long idleDeadline = System.nanoTime() + idleNanos;
+        long remaining;
+        while (pending.isEmpty()) {
+            if ((remaining = idleDeadline - System.nanoTime()) <= 0) {
+                AsyncLogger.forConfig(config).info("Closing idle acknowledgment channel to " + host + ":" + port);
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        long deadline = System.nanoTime() + lingerNanos;
+        while (pending.size() < maxLines && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        List<String> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    // Whether the batch was delivered
+    private boolean write(List<String> batch) {
+        StringBuilder lines = new StringBuilder();
+        for (String acknowledgment : batch) {
+            lines.append(acknowledgment).append('\n');
+        }
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                out.write(lines.toString());
+                out.flush();
+                AsyncLogger.forConfig(config).debug(() -> "Sent " + batch.size() + " acknowledgments to " + host + ":" + port);
+                return true;
+            } catch (IOException e) {
+                AsyncLogger.forConfig(config).warn("Error sending acknowledgments to " + host + ":" + port + ": " + e.getMessage());
+                disconnect();
+            }
+        }
+        AsyncLogger.forConfig(config).error("Dropped " + batch.size() + " acknowledgments for " + host + ":" + port);
+        return false;
+    }
+
+    // Takes the channel out of the map, later sends go to a new one. Returns the lines still queued.
+    private synchronized List<String> close() {
+        closed = true;
+        channels.remove(address(host, port), this);
+        List<String> unsent = pending;
+        pending = new ArrayList<>();
+        return unsent;
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(host, port);
+        newSocket.setTcpNoDelay(true);
+        this.out = new BufferedWriter(new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8));
+        this.socket = newSocket;
+        AsyncLogger.forConfig(config).info("Opened acknowledgment channel to " + host + ":" + port);
+    }
+
+    private void disconnect() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        socket = null;
+        out = null;
+    }
+}
@@ -0,0 +1,136 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Finds files the watcher never reported: files that arrived while the client was down, files
+ * whose events were lost when the WatchService overflowed, and files in a directory created
+ * before it could be watched.
+ *
+ * Scans run on scan.threads threads (Defaults to 2), so several roots are listed in parallel
+ * while watching goes on, and skip every file that is already on its way (busy). Files that have
+ * not changed for watch.settle.ms go straight into the pipeline, younger ones through the
+ * SettleWindow like a detected file. scan.rate.per.second (Defaults to 2000, 0 for no limit) paces
+ * all scans together, and the pipeline's own backpressure slows them down further when the
+ * senders fall behind.
+ */
+public class BacklogScanner {
+
+    private final Properties config;
+    private final FilePipeline<?> pipeline;
+    private final SettleWindow settleWindow;
+    private final Predicate<Path> busy;
+    private final long intervalNanos;
+    // Earliest time the next file may be queued, shared by all scans
+    private final AtomicLong nextSlotNanos = new AtomicLong(System.nanoTime());
+    private final ExecutorService scanner;
+    // Directories with a scan queued that has not started yet, further requests are covered by it
+    private final Set<Path> scansQueued = ConcurrentHashMap.newKeySet();
+
+    public BacklogScanner(Properties config, FilePipeline<?> pipeline, SettleWindow settleWindow, Predicate<Path> busy) {
+        this.config = config;
+        this.pipeline = pipeline;
+        this.settleWindow = settleWindow;
+        this.busy = busy;
+        double ratePerSecond = Double.parseDouble(config.getProperty("scan.rate.per.second", "2000"));
+        this.intervalNanos = ratePerSecond > 0 ? (long) (1_000_000_000 / ratePerSecond) : 0;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.scanner = Executors.newFixedThreadPool(Math.max(1, Integer.parseInt(config.getProperty("scan.threads", "2"))),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "backlog-scan-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // reason is only logged (startup, overflow, new directory)
+    public void requestScan(Path directory, boolean recursive, String reason) {
+        if (scansQueued.add(directory)) {
+            scanner.execute(() -> {
+                scansQueued.remove(directory);
+                scan(directory, recursive, reason);
+            });
+        }
+    }
+
+    private void scan(Path directory, boolean recursive, String reason) {
+        long start = System.currentTimeMillis();
+        int[] queued = new int[1];
+        int[] skipped = new int[1];
+        try {
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path filePath, BasicFileAttributes attributes) {
+                            if (!attributes.isRegularFile() || !filePath.getFileName().toString().endsWith(".properties")) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                            if (busy.test(filePath)) {
+                                skipped[0]++;
+                                return FileVisitResult.CONTINUE;
+                            }
+                            try {
+                                pace();
+                                if (start - attributes.lastModifiedTime().toMillis() >= settleWindow.settleMillis()) {
+                                    pipeline.submit(filePath);
+                                } else {
+                                    settleWindow.fileChanged(filePath);
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return FileVisitResult.TERMINATE;
+                            }
+                            queued[0]++;
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path filePath, IOException e) throws IOException {
+                            if (e instanceof NoSuchFileException) {
+                                return FileVisitResult.CONTINUE; // Sent and deleted since it was listed
+                            }
+                            throw e;
+                        }
+                    });
+        } catch (IOException e) {
+            AsyncLogger.forConfig(config).error("Error scanning " + directory + ": " + e.getMessage());
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        AsyncLogger.forConfig(config).info("Backlog scan (" + reason + ") of " + directory + " queued " + queued[0]
+                + " files, skipped " + skipped[0] + " already in flight, in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Waits for the next free slot. A scan that fell behind (backpressure) does not burst to catch up.
+    private void pace() throws InterruptedException {
+        if (intervalNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long slot = nextSlotNanos.getAndUpdate(previous -> Math.max(previous, now) + intervalNanos);
+        long waitNanos = slot - now;
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
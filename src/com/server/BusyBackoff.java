@@ -0,0 +1,88 @@
+package com.server;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends files again that the server turned away with "Busy:&lt;retry after ms&gt;" because it was overloaded.
+ *
+ * The file stays where it is and is handed to resend after a backoff: the n-th Busy in a row for a
+ * file waits a random time between half and all of busy.retry.base.ms * 2^n (Defaults to 200 ms),
+ * at most busy.retry.max.ms (Defaults to 30000 ms), but never less than the server asked for. The
+ * randomness keeps clients that were turned away together from all coming back at the same moment.
+ */
+public class BusyBackoff {
+
+    public static final String BUSY = "Busy";
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Consumer<Path> resend;
+    // Busy answers in a row per file, until it gets another answer
+    private final Map<Path, Integer> attempts = new ConcurrentHashMap<>();
+    // Files waiting for their resend
+    private final Map<Path, Boolean> waiting = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    public BusyBackoff(Properties config, Consumer<Path> resend) {
+        this.baseMillis = Math.max(1, Long.parseLong(config.getProperty("busy.retry.base.ms", "200")));
+        this.maxMillis = Math.max(baseMillis, Long.parseLong(config.getProperty("busy.retry.max.ms", "30000")));
+        this.resend = resend;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "busy-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // "Busy" or "Busy:<ms>"
+    public static boolean isBusy(String status) {
+        return status != null && (status.equals(BUSY) || status.startsWith(BUSY + ":"));
+    }
+
+    // The file was answered with a Busy status, resend it after the backoff
+    public void retryLater(Path filePath, String status) {
+        long delay = nextDelay(filePath, status);
+        waiting.put(filePath, Boolean.TRUE);
+        timer.schedule(() -> {
+            waiting.remove(filePath);
+            resend.accept(filePath);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Counts the Busy and returns how long to wait before sending the file (or chunk) again
+    public long nextDelay(Path filePath, String status) {
+        int attempt = attempts.merge(filePath, 1, Integer::sum) - 1;
+        long backoff = Math.min(maxMillis, baseMillis << Math.min(attempt, 30));
+        long jittered = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+        return Math.max(retryAfterMillis(status), jittered);
+    }
+
+    // Any other answer ends the file's run of Busy answers
+    public void answered(Path filePath) {
+        attempts.remove(filePath);
+    }
+
+    public boolean isWaiting(Path filePath) {
+        return waiting.containsKey(filePath);
+    }
+
+    private static long retryAfterMillis(String status) {
+        int separator = status.indexOf(':');
+        if (separator < 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(status.substring(separator + 1).trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
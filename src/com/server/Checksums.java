@@ -0,0 +1,63 @@
+package com.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Content hash of a property map, shared by client and server so both sides agree on it.
+ *
+ * SHA-256 over the key=value lines of the map sorted by key, UTF-8 encoded. Reserved keys
+ * (##FILENAME## and the other ##...## markers) are not part of the content. The entries are fed
+ * to the digest one by one instead of being joined into one string first.
+ */
+public final class Checksums {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] SEPARATOR = { '=' };
+    private static final byte[] LINE_END = { '\n' };
+
+    // One digest per thread, reset by every digest() call
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    });
+
+    private Checksums() {
+    }
+
+    public static String mapHash(Map<String, String> properties) {
+        String[] keys = properties.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        MessageDigest md = DIGESTS.get();
+        for (String key : keys) {
+            if (isReserved(key)) {
+                continue;
+            }
+            md.update(key.getBytes(StandardCharsets.UTF_8));
+            md.update(SEPARATOR);
+            md.update(properties.get(key).getBytes(StandardCharsets.UTF_8));
+            md.update(LINE_END);
+        }
+        return toHex(md.digest());
+    }
+
+    // Lower case, two digits per byte
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static boolean isReserved(String key) {
+        return key.startsWith("##");
+    }
+}
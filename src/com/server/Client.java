@@ -1,31 +1,68 @@
 package com.server;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.nio.file.FileSystems;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import com.server.logging.AsyncLogger;
+import com.server.protocol.FrameIO;
+import com.server.protocol.ServerConnection;
+import com.server.store.PropertiesLineReader;
 
 public class Client {
+
+    // One per server the watch roots send to, shared by every root that sends there
+    private static final class ServerTarget {
+        // Single persistent connection shared by every file sent to this server
+        final ServerConnection serverConnection;
+        // Groups files detected close together into one round trip (batch.max.files / batch.linger.ms)
+        final FileBatcher fileBatcher;
+        // Last acknowledged version of every file, so a resend only carries what changed
+        final SyncIndex syncIndex = new SyncIndex();
+        // Files sent and not yet acknowledged (inflight.max.files)
+        final InFlightWindow inFlight;
+
+        ServerTarget(WatchRoot root, Properties config) {
+            this.inFlight = new InFlightWindow(config);
+            this.serverConnection = new ServerConnection(config, root.getServerHost(), root.getServerPort(),
+                    ack -> handleLateAcknowledgment(ack, config));
+            this.fileBatcher = new FileBatcher(Integer.parseInt(config.getProperty("batch.max.files", "100")),
+                    Long.parseLong(config.getProperty("batch.linger.ms", "20")),
+                    files -> sendBatchToServer(this, files, config));
+        }
+    }
+
+    // Directories watched by this client (monitored.directory, or monitored.roots)
+    private static List<WatchRoot> watchRoots;
+    // Keyed by WatchRoot.serverAddress()
+    private static Map<String, ServerTarget> serverTargets;
+    // Reads and sends detected files off the watcher thread (pipeline.read.threads / pipeline.send.threads)
+    private static FilePipeline<FileBatcher.PendingFile> filePipeline;
+    // Holds files back until they are completely written (watch.settle.ms)
+    private static SettleWindow settleWindow;
+    // Picks up files that arrived while the client was down or whose events were lost (OVERFLOW)
+    private static BacklogScanner backlogScanner;
+    // Sends files again that an overloaded server answered Busy (busy.retry.base.ms / busy.retry.max.ms)
+    private static BusyBackoff busyBackoff;
+
     public static void main(String[] args) {
         // Load the configuration file
         if (args.length < 1) {
@@ -43,252 +80,467 @@ public class Client {
             return;
         }
 
-        int serverPort;
-
+        // Read configuration values
         try {
-            serverPort = Integer.parseInt(config.getProperty("server.port", "8080"));
-        } catch (NumberFormatException e) {
-            System.err.println("Invalid port number in configuration. Using default port 8080.");
-            serverPort = 8080;
+            watchRoots = WatchRoot.fromConfig(config);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ". Exiting.");
+            return;
         }
 
-        // Read configuration values
-        String monitoredDirectory = config.getProperty("monitored.directory");
+        logToFile("Client configuration loaded:", config);
+        Map<String, ServerTarget> targets = new HashMap<>();
+        for (WatchRoot root : watchRoots) {
+            logToFile("Watch root: " + root + ", Key Filter: " + root.getFilter(), config);
+            targets.computeIfAbsent(root.serverAddress(), address -> new ServerTarget(root, config));
+        }
+        serverTargets = targets;
+
+        // All roots share the pipeline workers, and roots sending to the same server share its connection
+        filePipeline = new FilePipeline<>(config,
+                filePath -> propertiesMapMaker(filePath, WatchRoot.containing(watchRoots, filePath), config),
+                file -> targetFor(file.getFilePath()).fileBatcher.add(file));
+        settleWindow = new SettleWindow(config, filePipeline);
+        busyBackoff = new BusyBackoff(config, filePath -> {
+            try {
+                filePipeline.submit(filePath);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        backlogScanner = new BacklogScanner(config, filePipeline, settleWindow,
+                path -> settleWindow.isPending(path) || filePipeline.isInFlight(path) || targetFor(path).fileBatcher.isPending(path)
+                        || targetFor(path).inFlight.isInFlight(path) || busyBackoff.isWaiting(path));
 
-        if (monitoredDirectory == null || monitoredDirectory.isBlank()) {
-            System.err.println("Missing 'monitored.directory' in configuration. Exiting.");
-            return;
+        // Watch Service
+        DirectoryWatcher watcher = new DirectoryWatcher(config, watchRoots, settleWindow.eventKinds(),
+                new DirectoryWatcher.Listener() {
+                    @Override
+                    public void fileChanged(Path filePath) throws InterruptedException {
+                        // Goes to the pipeline once it stopped changing, may wait here while the pipeline is full
+                        settleWindow.fileChanged(filePath);
+                    }
+
+                    @Override
+                    public void rescan(Path directory, boolean recursive, String reason) {
+                        backlogScanner.requestScan(directory, recursive, reason);
+                    }
+                });
+        try {
+            watcher.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.err.println("Error setting up directory watcher: " + e.getMessage());
         }
+    }
 
-        String filterRegex = config.getProperty("filter.regex", ".*");
-        if (!isValidRegex(filterRegex)) {
-            System.err.println("Invalid 'filter.regex' in configuration. Exiting.");
-            return;
+    private static ServerTarget targetFor(Path filePath) {
+        return serverTargets.get(WatchRoot.containing(watchRoots, filePath).serverAddress());
+    }
+
+    // Runs on a pipeline read worker, null when there is nothing left to send
+    private static FileBatcher.PendingFile propertiesMapMaker(Path filePath, WatchRoot root, Properties config) {
+        String fileNameForServer = root.fileNameFor(filePath);
+        logToFile("Processing file: " + fileNameForServer, config);
+
+        KeyFilter filter = root.getFilter();
+        ServerTarget target = serverTargets.get(root.serverAddress());
+        if (shouldStream(target, filePath, config)) {
+            // Read and sent chunk by chunk on this worker, the file never exists as a whole map
+            streamFileToServer(target, filePath, filter, config, fileNameForServer);
+            return null;
         }
 
-        String serverHost = config.getProperty("server.host");
-        int fileProcessInterval = Integer.parseInt(config.getProperty("file.process.interval", "0"));
+        // Load the properties file, keeping the keys the root's filter accepts
+        Map<String, String> propertiesMap;
+        try {
+            propertiesMap = filter.filterFile(filePath);
+        } catch (IOException e) {
+            System.err.println(filePath + " - Error loading properties file: " + e.getMessage());
+            System.err.println("Error loading properties file: " + e.getMessage());
+            return null;
+        }
 
-        logToFile("Client configuration loaded:", config);
-        logToFile("Monitored Directory: " + monitoredDirectory, config);
-        logToFile("Key Filter Regex: " + filterRegex, config);
-        logToFile("Server Address: " + serverHost + ":" + serverPort, config);
+        debugToFile(() -> "Filtered properties map: " + propertiesMap, config);
 
-        // Create the directory path
-        Path monitoredPath = Paths.get(monitoredDirectory);
+        // This Map along with File Name should be sent to Server, together with other files detected at the same time
+        return new FileBatcher.PendingFile(filePath, fileNameForServer, propertiesMap);
 
-        // Watch Service
-        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+    }
 
-            monitoredPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-            logToFile("Monitoring directory: " + monitoredPath, config);
+    // Files of at least stream.threshold.bytes (Defaults to 8 MB, 0 turns streaming off) are streamed in chunks
+    // instead of being loaded whole, if the server accepts streamed transfers
+    private static boolean shouldStream(ServerTarget target, Path filePath, Properties config) {
+        long threshold = Long.parseLong(config.getProperty("stream.threshold.bytes", "8388608"));
+        try {
+            return threshold > 0 && Files.size(filePath) >= threshold
+                    && target.serverConnection.supports(FrameIO.FEATURE_STREAMING);
+        } catch (IOException e) {
+            logToFile("Could not check whether to stream " + filePath + ": " + e.getMessage(), config);
+            return false;
+        }
+    }
 
-            while (true) {
-                WatchKey key;
-                try {
-                    // Wait for the next watch key
-                    key = watchService.take();
-                } catch (InterruptedException e) {
-                    System.err.println("Watcher interrupted: " + e.getMessage());
-                    return;
-                }
+    private static void streamFileToServer(ServerTarget target, Path filePath, KeyFilter filter, Properties config,
+            String fileNameForServer) {
+        logToFile("Streaming file to server in chunks: " + filePath, config);
+        String status = null;
+        try {
+            status = streamChunks(target, filePath, filter, config, fileNameForServer);
+            if (SyncIndex.RESYNC.equals(status)) {
+                // The server lost the staged chunks (e.g. it restarted), start the transfer over once
+                logToFile("Server does not know the streamed transfer, starting over: " + fileNameForServer, config);
+                status = streamChunks(target, filePath, filter, config, fileNameForServer);
+            }
 
-                processWatchKey(key, monitoredPath, filterRegex, config, fileProcessInterval);
+            if ("Success".equals(status)) {
+                logToFile("File processed successfully. Deleting the file: " + filePath, config);
+                Files.delete(filePath);
+            } else {
+                logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
+                moveFileToFailedFolder(filePath, fileNameForServer, config);
+            }
+        } catch (TimeoutException e) {
+            logToFile("Server acknowledgment timeout. Moving file to failed folder: " + filePath, config);
+            moveFileToFailedFolder(filePath, fileNameForServer, config);
+        } catch (ExecutionException | IOException e) {
+            logToFile("Error streaming file to server: " + e.getMessage(), config);
+            moveFileToFailedFolder(filePath, fileNameForServer, config);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Streamed files are not kept for delta sync, the next send of this file is a whole one
+            target.syncIndex.acknowledged(fileNameForServer, null);
+        }
+    }
 
-                // Reset the key to continue watching for events
-                boolean valid = key.reset();
-                if (!valid) {
-                    System.err.println("WatchKey no longer valid. Exiting.");
-                    break;
+    // Sends the file chunk by chunk, each one acknowledged before the next goes out. Returns the status of the
+    // last chunk sent, which is the status of the whole file unless a chunk failed.
+    private static String streamChunks(ServerTarget target, Path filePath, KeyFilter filter, Properties config,
+            String fileNameForServer) throws IOException, ExecutionException, InterruptedException, TimeoutException {
+        long chunkBytes = Long.parseLong(config.getProperty("stream.chunk.bytes", "1048576"));
+        String transferId = UUID.randomUUID().toString();
+        try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.ISO_8859_1)) {
+            PropertiesLineReader entries = new PropertiesLineReader(reader);
+            Map<String, String> chunk = readChunk(entries, filter, chunkBytes, config);
+            if (chunk == null) {
+                chunk = new HashMap<>(); // Nothing in the file, a single empty chunk still replaces or merges it
+            }
+            for (int sequence = 0;; sequence++) {
+                // One chunk ahead, so the last one can be marked
+                Map<String, String> next = readChunk(entries, filter, chunkBytes, config);
+                chunk.put("##STREAM##", transferId);
+                chunk.put("##CHUNK##", String.valueOf(sequence));
+                if (next == null) {
+                    chunk.put("##LAST##", "true");
+                }
+                String status = sendChunk(target, chunk, filePath, fileNameForServer, config);
+                if (!"Success".equals(status) || next == null) {
+                    return status;
                 }
+                chunk = next;
             }
+        }
+    }
 
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            System.err.println("Error setting up directory watcher: " + e.getMessage());
+    // Up to stream.chunk.bytes of entries, filtered like a whole file. null at the end of the file.
+    private static Map<String, String> readChunk(PropertiesLineReader entries, KeyFilter filter, long chunkBytes,
+            Properties config) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String entry;
+        while (text.length() < chunkBytes && (entry = entries.nextEntry()) != null) {
+            text.append(entry).append('\n');
+        }
+        if (text.length() == 0) {
+            return null;
         }
+        Properties properties = new Properties();
+        properties.load(new StringReader(text.toString()));
+        return filter.filter(properties);
     }
 
-    private static void processWatchKey(WatchKey key, Path monitoredPath, String filterRegex, Properties config,
-            int interval) throws InterruptedException {
-        for (WatchEvent<?> event : key.pollEvents()) {
-            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                // Path filePath = monitoredPath.resolve((Path) event.context());
-                Path filePath = (Path) event.context();
-                Path fullFilePath = monitoredPath.resolve(filePath);
-                logToFile("New file detected: " + filePath, config);
-
-                if (filePath.toString().endsWith(".properties")) {
-                    logToFile("Processing file: " + filePath, config);
-                    propertiesMapMaker(fullFilePath, filterRegex, config, filePath.toString());
-                    // For Testing multi threading
-                    // Thread.sleep(interval);
+    // A chunk that could not be delivered is sent again up to stream.retries times (Defaults to 3), stream.retry.delay.ms
+    // apart (Defaults to 1000). The server keeps the chunks it already staged across reconnects and acknowledges a
+    // repeated one without staging it twice. A chunk answered Busy is sent again after the busy backoff, however often.
+    private static String sendChunk(ServerTarget target, Map<String, String> chunk, Path filePath, String fileNameForServer,
+            Properties config)
+            throws IOException, ExecutionException, InterruptedException, TimeoutException {
+        int retries = Integer.parseInt(config.getProperty("stream.retries", "3"));
+        long retryDelay = Long.parseLong(config.getProperty("stream.retry.delay.ms", "1000"));
+        int failures = 0;
+        while (true) {
+            try {
+                String status = awaitStatus(requestStatus(target, chunk, fileNameForServer, config));
+                if (!BusyBackoff.isBusy(status)) {
+                    busyBackoff.answered(filePath);
+                    return status;
+                }
+                long delay = busyBackoff.nextDelay(filePath, status);
+                logToFile("Server busy, resending chunk " + chunk.get("##CHUNK##") + " of " + fileNameForServer
+                        + " in " + delay + " ms", config);
+                target.serverConnection.reconnectWhenIdle();
+                Thread.sleep(delay);
+            } catch (IOException | ExecutionException | TimeoutException e) {
+                if (failures++ >= retries) {
+                    throw e;
                 }
+                logToFile("Resending chunk " + chunk.get("##CHUNK##") + " of " + fileNameForServer + ": " + e.getMessage(), config);
+                Thread.sleep(retryDelay);
             }
         }
-        key.reset();
     }
 
-    private static void propertiesMapMaker(Path filePath, String filterRegex, Properties config,
+    // Returns once the file is sent, its acknowledgment is handled by finish on the window's ack handler
+    private static void sendMapToServer(ServerTarget target, Map<String, String> propertiesMap, Path filePath, Properties config,
             String fileNameForServer) {
 
-        Map<String, String> propertiesMap = new HashMap<>();
+        logToFile("Sending properties map to server for file: " + filePath, config);
+        debugToFile(() -> "Properties map: " + propertiesMap, config);
 
-        // Load the properties file
-        Pattern pattern = Pattern.compile(filterRegex);
-        Properties properties = new Properties();
-        try (FileInputStream fileInputStream = new FileInputStream(filePath.toFile())) {
-            // Load properties from the file
-            properties.load(fileInputStream);
+        CompletableFuture<String> status;
+        try {
+            // Only the keys changed since the last acknowledged version when the server supports delta sync
+            Map<String, String> message = target.syncIndex.prepare(fileNameForServer, propertiesMap,
+                    target.serverConnection.supports(FrameIO.FEATURE_DELTA_SYNC));
+            status = requestStatus(target, message, fileNameForServer, config)
+                    .thenComposeAsync(received -> SyncIndex.RESYNC.equals(received)
+                            ? resync(target, fileNameForServer, config)
+                            : CompletableFuture.completedFuture(received), target.inFlight.callbacks());
         } catch (IOException e) {
-            System.err.println(filePath + " - Error loading properties file: " + e.getMessage());
-            System.err.println("Error loading properties file: " + e.getMessage());
-            return;
+            status = CompletableFuture.failedFuture(e);
         }
+        status.whenCompleteAsync((received, error) -> finish(target, filePath, fileNameForServer, received, error, config),
+                target.inFlight.callbacks());
+    }
+
+    // Deletes the file on Success, leaves it for a later resend on Busy, otherwise moves it to the failed folder,
+    // and frees its place in the window
+    private static void finish(ServerTarget target, Path filePath, String fileNameForServer, String status, Throwable error,
+            Properties config) {
+        try {
+            Throwable cause = unwrap(error);
+            if (cause instanceof TimeoutException) {
+                logToFile("Server acknowledgment timeout. Moving file to failed folder: " + filePath, config);
+            } else if (cause != null) {
+                logToFile("Error reading server response: " + cause.getMessage(), config);
+            }
+            target.syncIndex.acknowledged(fileNameForServer, status);
+
+            // The server was overloaded, it did not store the file. Reconnecting lets it admit us again.
+            if (BusyBackoff.isBusy(status)) {
+                logToFile("Server busy, sending the file again later: " + filePath, config);
+                target.serverConnection.reconnectWhenIdle();
+                busyBackoff.retryLater(filePath, status);
+                return;
+            }
+            busyBackoff.answered(filePath);
 
-        // Iterate over the properties and filter based on regex
-        for (String key : properties.stringPropertyNames()) {
-            // Match the key with the provided regex pattern
-            logToFile("Checking key: " + key, config);
-            key = key.trim();
-            Matcher matcher = pattern.matcher(key);
-            if (matcher.matches()) {
-                // If it matches, print the key and value (this is just an example)
-                // logToFile(key + "=" + properties.getProperty(key));
-                propertiesMap.put(key, properties.getProperty(key));
+            // Check if the message matches success or failure pattern
+            if ("Success".equals(status)) {
+                logToFile("File processed successfully. Deleting the file: " + filePath, config);
+                try {
+                    Files.delete(filePath); // Delete the file if acknowledgment is Success
+                } catch (IOException e) {
+                    logToFile("Failed to delete file: " + e.getMessage(), config);
+                }
+            } else {
+                logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
+                moveFileToFailedFolder(filePath, fileNameForServer, config); // Move file to failed folder
             }
+        } finally {
+            target.inFlight.release(filePath);
         }
+    }
 
-        logToFile("Filtered properties map: " + propertiesMap, config);
+    // Failures of dependent futures arrive wrapped in a CompletionException
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
 
-        // This Map along with File Name should be sent to Server
-        sendMapToServer(propertiesMap, filePath, config, fileNameForServer);
+    // Sends one file, the future completes with its status from the acknowledgment carrying this request's id,
+    // or fails after server.ack.timeout (Defaults to 10 secs). A late ack is then handled by handleLateAcknowledgment.
+    private static CompletableFuture<String> requestStatus(ServerTarget target, Map<String, String> message,
+            String fileNameForServer, Properties config) throws IOException {
+        message.put("##FILENAME##", fileNameForServer);
+        requestFlushIfConfigured(message, config);
 
+        int ackTimeout = Integer.parseInt(config.getProperty("server.ack.timeout", "10000"));
+        CompletableFuture<String> acknowledgment = target.serverConnection.send(message); // Frame and send the map
+        return target.inFlight.withTimeout(acknowledgment, ackTimeout).thenApply(serverMessage -> {
+            logToFile("Received from server: " + serverMessage, config);
+            String busy = busyForAll(serverMessage);
+            return busy != null ? busy : parseAcknowledgments(serverMessage).get(fileNameForServer);
+        });
     }
 
-    private static void sendMapToServer(Map<String, String> propertiesMap, Path filePath, Properties config,
-            String fileNameForServer) {
+    // A server turning a whole message away answers "Busy:<ms>" without file names, for every file in it
+    private static String busyForAll(String serverMessage) {
+        String status = serverMessage.trim();
+        return BusyBackoff.isBusy(status) ? status : null;
+    }
 
-        logToFile("Sending properties map to server for file: " + filePath, config);
-        logToFile("Properties map: " + propertiesMap, config);
+    // Waits for the status, for the chunks of a streamed file which go out one after the other
+    private static String awaitStatus(CompletableFuture<String> status)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        try {
+            return status.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Waits for room in the window, then sends the files and returns, their acknowledgment is handled on the window's
+    // ack handler
+    private static void sendBatchToServer(ServerTarget target, List<FileBatcher.PendingFile> files, Properties config) {
+        List<Path> filePaths = new ArrayList<>(files.size());
+        files.forEach(file -> filePaths.add(file.getFilePath()));
+        try {
+            target.inFlight.acquire(filePaths);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-        String serverHost = config.getProperty("server.host");
-        int serverPort = Integer.parseInt(config.getProperty("server.port"));
-        // Acknowledgment timeout from server -> defualts to 5 secs
+        if (files.size() == 1) {
+            FileBatcher.PendingFile file = files.get(0);
+            sendMapToServer(target, file.getPropertiesMap(), file.getFilePath(), config, file.getFileNameForServer());
+            return;
+        }
+
+        logToFile("Sending batch of " + files.size() + " files to server", config);
+        // server.ack.timeout applies to the batch as a whole
         int ackTimeout = Integer.parseInt(config.getProperty("server.ack.timeout", "10000"));
-        long timeoutTime = System.currentTimeMillis() + ackTimeout;
-        final AtomicBoolean ackForCurrentFile = new AtomicBoolean(false);
-
-        // Map<String, String> mapWithFileName = new HashMap<>();
-
-        propertiesMap.put("##FILENAME##", fileNameForServer);
-
-        try (Socket socket = new Socket(serverHost, serverPort);
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream())) {
-            logToFile("Connected to the server!", config);
-
-            oos.writeObject(propertiesMap); // Serialize and send the map
-            oos.flush();
-            // Create a separate thread to wait for the acknowledgment
-            final String[] serverMessage = { null };
-            Thread responseThread = new Thread(() -> {
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                    while (System.currentTimeMillis() < timeoutTime) {
-                        if (socket.getInputStream().available() > 0) {
-                            serverMessage[0] = in.readLine(); // Read the server response
-                            logToFile("Received from server: " + serverMessage[0], config);
-
-                            // Check if the message matches success or failure pattern
-                            if (serverMessage[0].contains(fileNameForServer + "=Success")) {
-                                logToFile("File processed successfully. Deleting the file: " + filePath, config);
-                                Files.delete(filePath); // Delete the file if acknowledgment is Success
-                                ackForCurrentFile.set(true);
-                                break;
-                            } else if (serverMessage[0].contains(fileNameForServer + "=Failure")) {
-                                logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
-                                moveFileToFailedFolder(filePath, config); // Move file to failed folder
-                                ackForCurrentFile.set(true);
-                                break;
-                            }else{
-                                // split the message and get Filename and Status
-                                String[] splitMessage = serverMessage[0].split("=");
-                                if(splitMessage.length == 2){
-                                    if(splitMessage[1].equals("Success")){
-                                        logToFile("File processed successfully. Deleting the file: " + filePath, config);
-                                        // Delete from Failed Directory if exists
-                                        Path failedDir = Paths.get(config.getProperty("failed.directory", "failed"));
-                                        Path failedFilePath = failedDir.resolve(filePath.getFileName());
-                                        if(Files.exists(failedFilePath)){
-                                            Files.delete(failedFilePath);
-                                        }
-                                    }else if(splitMessage[1].equals("Failure")){
-                                        logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
-                                        // The file will already be in the Failed Folder so no need to move
-                                    }
-                                }
-                            }
-                        }
-                        Thread.sleep(10); // Add small delay to avoid high CPU usage
-                    }
 
-                    // If no valid acknowledgment for current file was received
-                    if (!ackForCurrentFile.get()) {
-                        logToFile("Server acknowledgment timeout. Moving file to failed folder: " + filePath, config);
-                        // Move file to failed folder if no response was received
-                        moveFileToFailedFolder(filePath, config);
-                    }
-                } catch (IOException | InterruptedException e) {
-                    serverMessage[0] = "FAIL"; // Failure if there is an exception in reading the response
-                    logToFile("Error reading server response: " + e.getMessage(), config);
-                    moveFileToFailedFolder(filePath, config); // Move file to failed folder on error
-                }
+        List<Map<String, String>> maps = new ArrayList<>(files.size());
+        CompletableFuture<String> acknowledgment;
+        try {
+            boolean deltaSupported = target.serverConnection.supports(FrameIO.FEATURE_DELTA_SYNC);
+            for (FileBatcher.PendingFile file : files) {
+                Map<String, String> message = target.syncIndex.prepare(file.getFileNameForServer(), file.getPropertiesMap(), deltaSupported);
+                message.put("##FILENAME##", file.getFileNameForServer());
+                requestFlushIfConfigured(message, config);
+                maps.add(message);
+            }
+            acknowledgment = target.inFlight.withTimeout(target.serverConnection.sendBatch(maps), ackTimeout);
+        } catch (IOException e) {
+            logToFile("Error sending batch to server: " + e.getMessage(), config);
+            files.forEach(file -> {
+                target.syncIndex.acknowledged(file.getFileNameForServer(), null);
+                moveFileToFailedFolder(file.getFilePath(), file.getFileNameForServer(), config);
+                target.inFlight.release(file.getFilePath());
             });
+            return;
+        }
 
-            responseThread.start();
-            responseThread.join(ackTimeout); // Wait for the response or timeout
+        acknowledgment.whenCompleteAsync((serverMessage, error) -> {
+            Map<String, String> statuses = new HashMap<>();
+            String busy = null;
+            if (unwrap(error) instanceof TimeoutException) {
+                logToFile("Server acknowledgment timeout for batch. Moving files to failed folder", config);
+            } else if (error != null) {
+                logToFile("Error reading server response: " + unwrap(error).getMessage(), config);
+            } else {
+                debugToFile(() -> "Received from server: " + serverMessage, config);
+                statuses = parseAcknowledgments(serverMessage);
+                busy = busyForAll(serverMessage);
+            }
 
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            // Files without a Success status (failed, timed out or missing from the ack) go to the failed folder
+            for (FileBatcher.PendingFile file : files) {
+                String status = busy != null ? busy : statuses.get(file.getFileNameForServer());
+                if (SyncIndex.RESYNC.equals(status)) {
+                    resync(target, file.getFileNameForServer(), config).whenCompleteAsync((received, resyncError) -> finish(
+                            target, file.getFilePath(), file.getFileNameForServer(), received, resyncError, config),
+                            target.inFlight.callbacks());
+                } else {
+                    finish(target, file.getFilePath(), file.getFileNameForServer(), status, null, config);
+                }
+            }
+        }, target.inFlight.callbacks());
+    }
+
+    // Sends the whole file after the server rejected its delta
+    private static CompletableFuture<String> resync(ServerTarget target, String fileNameForServer, Properties config) {
+        logToFile("Server asked for the whole file: " + fileNameForServer, config);
+        try {
+            return requestStatus(target, target.syncIndex.resyncMessage(fileNameForServer), fileNameForServer, config);
+        } catch (IOException e) {
+            logToFile("Error resending file to server: " + e.getMessage(), config);
+            return CompletableFuture.failedFuture(e);
         }
+    }
 
+    // ack.requires.flush=true asks a server with a write-behind cache to have the file on disk before acking it
+    private static void requestFlushIfConfigured(Map<String, String> propertiesMap, Properties config) {
+        if (Boolean.parseBoolean(config.getProperty("ack.requires.flush", "false"))) {
+            propertiesMap.put("##FLUSH##", "true");
+        }
     }
 
-    private static void logToFile(String message, Properties config) {
-        System.out.println(message);
-        String logFilePath = config.getProperty("log.file.path", "./logs/client_log.txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write(message);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+    // One "filename=status" line per file, the filename may itself contain '='
+    private static Map<String, String> parseAcknowledgments(String serverMessage) {
+        Map<String, String> statuses = new HashMap<>();
+        for (String line : serverMessage.split("\n")) {
+            int separator = line.lastIndexOf('=');
+            if (separator > 0) {
+                statuses.put(line.substring(0, separator), line.substring(separator + 1).trim());
+            }
         }
+        return statuses;
     }
 
-    private static boolean isValidRegex(String regex) {
-        try {
-            Pattern.compile(regex);
-            return true;
-        } catch (Exception e) {
-            return false;
+    // Acks that arrive after server.ack.timeout, the file was already moved to the failed directory
+    private static void handleLateAcknowledgment(String serverMessage, Properties config) {
+        logToFile("Received late acknowledgment from server: " + serverMessage, config);
+        Path failedDir = Paths.get(config.getProperty("failed.directory", "failed"));
+        for (Map.Entry<String, String> status : parseAcknowledgments(serverMessage).entrySet()) {
+            if (status.getValue().equals("Success")) {
+                // Delete from Failed Directory if exists, it was moved there under the name it was sent with
+                Path failedFilePath = WatchRoot.within(failedDir, status.getKey());
+                if (failedFilePath == null) {
+                    logToFile("Ignoring acknowledgment for a file outside the failed folder: " + status.getKey(), config);
+                    continue;
+                }
+                try {
+                    if (Files.deleteIfExists(failedFilePath)) {
+                        logToFile("File processed successfully. Deleted from failed folder: " + failedFilePath, config);
+                    }
+                } catch (IOException e) {
+                    logToFile("Failed to delete file from failed directory: " + e.getMessage(), config);
+                }
+            }
         }
     }
 
-    private static void moveFileToFailedFolder(Path filePath, Properties config) {
+    private static void logToFile(String message, Properties config) {
+        AsyncLogger.forConfig(config).info(message);
+    }
+
+    // Per-key and whole-map lines, only built when log.level=DEBUG
+    private static void debugToFile(Supplier<String> message, Properties config) {
+        AsyncLogger.forConfig(config).debug(message);
+    }
+
+    // The file keeps the name it was sent under, so files of the same name from other directories or roots do not replace it
+    private static void moveFileToFailedFolder(Path filePath, String fileNameForServer, Properties config) {
         Path failedDir = Paths.get(config.getProperty("failed.directory", "failed"));
         logToFile("Failed directory path: " + failedDir.toString(), config);
+        Path failedFilePath = failedDir.resolve(fileNameForServer);
 
-        // Ensure the failed directory exists
+        // Ensure the failed directory (and the file's subdirectory in it) exists
         try {
-            if (!Files.exists(failedDir)) {
+            if (!Files.exists(failedFilePath.getParent())) {
                 logToFile("Failed directory does not exist. Creating it...", config);
-                Files.createDirectories(failedDir);
+                Files.createDirectories(failedFilePath.getParent());
             }
         } catch (IOException e) {
             logToFile("Failed to create failed directory: " + e.getMessage(), config);
             return; // Exit method since we cannot proceed without the directory
         }
 
-        Path failedFilePath = failedDir.resolve(filePath.getFileName());
         try {
             // Move and replace the file in the failed directory
             Files.move(filePath, failedFilePath, StandardCopyOption.REPLACE_EXISTING);
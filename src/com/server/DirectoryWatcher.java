@@ -0,0 +1,143 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Watches every WatchRoot of a client with a single WatchService on the calling thread.
+ *
+ * Recursive roots have all their subdirectories registered, and a directory created later is
+ * registered as soon as its create event arrives. Files that may have been missed (at startup,
+ * when events were lost to an OVERFLOW, or inside a directory that existed before it could be
+ * registered) are reported through Listener.rescan, the rest as single files.
+ */
+public class DirectoryWatcher {
+
+    public interface Listener {
+        // A create or modify event for a .properties file
+        void fileChanged(Path filePath) throws InterruptedException;
+
+        // Files in directory (and below it when recursive) may not have been reported
+        void rescan(Path directory, boolean recursive, String reason);
+    }
+
+    private final Properties config;
+    private final List<WatchRoot> roots;
+    private final WatchEvent.Kind<?>[] eventKinds;
+    private final Listener listener;
+    // Only used by the watching thread
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+    public DirectoryWatcher(Properties config, List<WatchRoot> roots, WatchEvent.Kind<?>[] eventKinds, Listener listener) {
+        this.config = config;
+        this.roots = roots;
+        this.eventKinds = eventKinds;
+        this.listener = listener;
+    }
+
+    // Returns once no directory can be watched any more
+    public void run() throws IOException, InterruptedException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            for (WatchRoot root : roots) {
+                register(watchService, root.getDirectory(), root.isRecursive());
+                logToFile("Monitoring directory: " + root);
+            }
+            // Registered first, so a file created during the scan is found by one or the other
+            for (WatchRoot root : roots) {
+                listener.rescan(root.getDirectory(), root.isRecursive(), "startup");
+            }
+
+            while (!watchedDirectories.isEmpty()) {
+                WatchKey key = watchService.take();
+                Path directory = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logToFile("Watch events were lost (OVERFLOW), rescanning: " + (directory == null ? "all roots" : directory));
+                        if (directory == null) {
+                            roots.forEach(root -> listener.rescan(root.getDirectory(), root.isRecursive(), "overflow"));
+                        } else {
+                            WatchRoot root = WatchRoot.containing(roots, directory);
+                            listener.rescan(directory, root != null && root.isRecursive(), "overflow");
+                        }
+                    } else if (directory != null) {
+                        handle(watchService, event, directory.resolve((Path) event.context()));
+                    }
+                }
+
+                // Reset the key to continue watching for events
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                    logToFile("Directory no longer watched: " + directory);
+                }
+            }
+            System.err.println("No watched directory left. Exiting.");
+        }
+    }
+
+    private void handle(WatchService watchService, WatchEvent<?> event, Path path) throws InterruptedException {
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            WatchRoot root = WatchRoot.containing(roots, path);
+            if (root != null && root.isRecursive()) {
+                try {
+                    register(watchService, path, true);
+                } catch (IOException e) {
+                    logToFile("Cannot watch new directory " + path + ": " + e.getMessage()); // e.g. already removed again
+                    return;
+                }
+                logToFile("Watching new directory: " + path);
+                // Files may have been written into it before it was registered
+                listener.rescan(path, true, "new directory");
+            }
+            return;
+        }
+
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            logToFile("New file detected: " + path);
+        } else {
+            AsyncLogger.forConfig(config).debug(() -> "File modified: " + path);
+        }
+        if (path.getFileName().toString().endsWith(".properties")) {
+            listener.fileChanged(path);
+        }
+    }
+
+    private void register(WatchService watchService, Path directory, boolean recursive) throws IOException {
+        if (!recursive) {
+            watchedDirectories.put(directory.register(watchService, eventKinds), directory);
+            return;
+        }
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdirectory, BasicFileAttributes attributes) throws IOException {
+                watchedDirectories.put(subdirectory.register(watchService, eventKinds), subdirectory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logToFile("Cannot watch " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void logToFile(String message) {
+        AsyncLogger.forConfig(config).info(message);
+    }
+}
@@ -0,0 +1,117 @@
+package com.server;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects detected files so they can be sent to the server in one round trip.
+ *
+ * A batch is handed to the sender once it holds batch.max.files files, or batch.linger.ms after
+ * its first file arrived, whichever comes first. The sender runs on the thread that completed
+ * the batch (a FilePipeline send worker, or the linger timer), outside of the batcher's lock.
+ */
+public class FileBatcher {
+
+    public static class PendingFile {
+        private final Path filePath;
+        private final String fileNameForServer;
+        private final Map<String, String> propertiesMap;
+
+        public PendingFile(Path filePath, String fileNameForServer, Map<String, String> propertiesMap) {
+            this.filePath = filePath;
+            this.fileNameForServer = fileNameForServer;
+            this.propertiesMap = propertiesMap;
+        }
+
+        public Path getFilePath() {
+            return filePath;
+        }
+
+        public String getFileNameForServer() {
+            return fileNameForServer;
+        }
+
+        public Map<String, String> getPropertiesMap() {
+            return propertiesMap;
+        }
+
+        @Override
+        public String toString() {
+            return filePath.toString();
+        }
+    }
+
+    private final int maxFiles;
+    private final long lingerMillis;
+    private final Consumer<List<PendingFile>> sender;
+    private final ScheduledExecutorService lingerTimer;
+    private List<PendingFile> batch = new ArrayList<>();
+    // Added and not yet through the sender
+    private final Set<Path> pendingPaths = ConcurrentHashMap.newKeySet();
+
+    public FileBatcher(int maxFiles, long lingerMillis, Consumer<List<PendingFile>> sender) {
+        this.maxFiles = Math.max(1, maxFiles);
+        this.lingerMillis = lingerMillis;
+        this.sender = sender;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-linger-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void add(PendingFile file) {
+        List<PendingFile> fullBatch = null;
+        pendingPaths.add(file.getFilePath());
+        synchronized (this) {
+            batch.add(file);
+            if (batch.size() >= maxFiles || lingerMillis <= 0) {
+                fullBatch = takeBatch();
+            } else if (batch.size() == 1) {
+                List<PendingFile> lingering = batch;
+                lingerTimer.schedule(() -> flush(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+    }
+
+    public boolean isPending(Path filePath) {
+        return pendingPaths.contains(filePath);
+    }
+
+    // Only flushes if the batch the timer was started for has not already been sent for being full
+    private void flush(List<PendingFile> lingering) {
+        List<PendingFile> lingeredBatch;
+        synchronized (this) {
+            if (batch != lingering || batch.isEmpty()) {
+                return;
+            }
+            lingeredBatch = takeBatch();
+        }
+        send(lingeredBatch);
+    }
+
+    private void send(List<PendingFile> files) {
+        try {
+            sender.accept(files);
+        } finally {
+            files.forEach(file -> pendingPaths.remove(file.getFilePath()));
+        }
+    }
+
+    private List<PendingFile> takeBatch() {
+        List<PendingFile> taken = batch;
+        batch = new ArrayList<>();
+        return taken;
+    }
+}
@@ -0,0 +1,175 @@
+package com.server;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Moves detected files through the read/filter and send stages off the watcher thread.
+ *
+ * The watcher only hands the path of a detected file to submit. pipeline.read.threads workers
+ * (Defaults to 2) load and filter the files, pipeline.send.threads workers (Defaults to 1) send
+ * what they produced. The stages are connected by queues of pipeline.queue.capacity entries
+ * (Defaults to 1000): when the senders fall behind the read queue fills up and submit blocks, so
+ * a slow server slows down intake instead of piling files up in memory.
+ *
+ * A file counts as in flight from submit until its send stage finished (or the read stage found
+ * nothing to send), so a rescan of the directory can leave it alone.
+ *
+ * Queue depths are logged at DEBUG every pipeline.report.interval.ms (Defaults to 10000, 0 off),
+ * and at INFO (at most once a second) when the watcher has to wait for room.
+ */
+public class FilePipeline<T> {
+
+    private static final class Parsed<T> {
+        final Path filePath;
+        final T file;
+
+        Parsed(Path filePath, T file) {
+            this.filePath = filePath;
+            this.file = file;
+        }
+    }
+
+    private final Properties config;
+    private final BlockingQueue<Path> detected;
+    private final BlockingQueue<Parsed<T>> parsed;
+    // Submissions per path that are not finished yet
+    private final Map<Path, Integer> inFlight = new ConcurrentHashMap<>();
+    private final Function<Path, T> reader;
+    private final Consumer<T> sender;
+    // Files taken off a queue and not yet finished by their stage
+    private final AtomicInteger reading = new AtomicInteger();
+    private final AtomicInteger sending = new AtomicInteger();
+    private final AtomicLong lastFullReport = new AtomicLong();
+
+    // reader returns null for a file that has nothing left to send (unreadable, or already handled)
+    public FilePipeline(Properties config, Function<Path, T> reader, Consumer<T> sender) {
+        this.config = config;
+        int capacity = Integer.parseInt(config.getProperty("pipeline.queue.capacity", "1000"));
+        this.detected = new ArrayBlockingQueue<>(capacity);
+        this.parsed = new ArrayBlockingQueue<>(capacity);
+        this.reader = reader;
+        this.sender = sender;
+
+        startWorkers("pipeline-read", Integer.parseInt(config.getProperty("pipeline.read.threads", "2")), this::readLoop);
+        startWorkers("pipeline-send", Integer.parseInt(config.getProperty("pipeline.send.threads", "1")), this::sendLoop);
+
+        long reportInterval = Long.parseLong(config.getProperty("pipeline.report.interval.ms", "10000"));
+        if (reportInterval > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pipeline-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> AsyncLogger.forConfig(config).debug(() -> "Pipeline " + queueDepths()),
+                    reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Blocks while the read queue is full
+    public void submit(Path filePath) throws InterruptedException {
+        inFlight.merge(filePath, 1, Integer::sum);
+        if (!detected.offer(filePath)) {
+            long now = System.currentTimeMillis();
+            long last = lastFullReport.get();
+            if (now - last >= 1000 && lastFullReport.compareAndSet(last, now)) {
+                AsyncLogger.forConfig(config).info("Pipeline full, waiting to queue " + filePath + ": " + queueDepths());
+            }
+            try {
+                detected.put(filePath);
+            } catch (InterruptedException e) {
+                finished(filePath);
+                throw e;
+            }
+        }
+    }
+
+    public boolean isInFlight(Path filePath) {
+        return inFlight.containsKey(filePath);
+    }
+
+    public int readQueueDepth() {
+        return detected.size();
+    }
+
+    public int sendQueueDepth() {
+        return parsed.size();
+    }
+
+    public String queueDepths() {
+        return "read queue=" + detected.size() + " (" + reading.get() + " reading), send queue=" + parsed.size()
+                + " (" + sending.get() + " sending)";
+    }
+
+    private void readLoop() throws InterruptedException {
+        while (true) {
+            Path filePath = detected.take();
+            reading.incrementAndGet();
+            boolean handedOn = false;
+            try {
+                T file = reader.apply(filePath);
+                if (file != null) {
+                    parsed.put(new Parsed<>(filePath, file));
+                    handedOn = true;
+                }
+            } catch (RuntimeException e) {
+                AsyncLogger.forConfig(config).error("Error reading " + filePath + ": " + e);
+            } finally {
+                reading.decrementAndGet();
+                if (!handedOn) {
+                    finished(filePath);
+                }
+            }
+        }
+    }
+
+    private void sendLoop() throws InterruptedException {
+        while (true) {
+            Parsed<T> parsedFile = parsed.take();
+            sending.incrementAndGet();
+            try {
+                sender.accept(parsedFile.file);
+            } catch (RuntimeException e) {
+                AsyncLogger.forConfig(config).error("Error sending " + parsedFile.filePath + ": " + e);
+            } finally {
+                sending.decrementAndGet();
+                finished(parsedFile.filePath);
+            }
+        }
+    }
+
+    private void finished(Path filePath) {
+        inFlight.computeIfPresent(filePath, (path, count) -> count == 1 ? null : count - 1);
+    }
+
+    private interface Loop {
+        void run() throws InterruptedException;
+    }
+
+    private void startWorkers(String name, int count, Loop loop) {
+        for (int i = 1; i <= Math.max(1, count); i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    loop.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+}
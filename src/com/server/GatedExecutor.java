@@ -0,0 +1,71 @@
+package com.server;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits at most a fixed number of tasks to an executor that has no queue of its own to fill up
+ * (server.executor=virtual starts a thread for every task).
+ *
+ * A task holds one of the gate's permits from submission until it finished, a task that finds
+ * none left is rejected with a RejectedExecutionException, which the server answers with Busy
+ * exactly like a full worker queue.
+ */
+final class GatedExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+    private final Semaphore admitted;
+
+    GatedExecutor(ExecutorService delegate, int limit) {
+        this.delegate = delegate;
+        this.admitted = new Semaphore(limit);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!admitted.tryAcquire()) {
+            throw new RejectedExecutionException("More than the admitted number of tasks");
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    admitted.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admitted.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,103 @@
+package com.server;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files sent to one server whose acknowledgment has not been handled yet.
+ *
+ * The sender does not wait for acknowledgments: it reserves room for its files, sends them and
+ * moves on, and every acknowledgment is handled by a completion callback on one of
+ * ack.handler.threads threads (Defaults to 2). At most inflight.max.files files (Defaults to 256)
+ * are outstanding at a time, further sends wait for room, and so does a new send of a file that
+ * is still outstanding. A send without an acknowledgment after its timeout is failed by a
+ * scheduler instead of a waiting thread.
+ */
+public class InFlightWindow {
+
+    private final int maxFiles;
+    // Outstanding files, guarded by this. Their timeouts are scheduled by withTimeout.
+    private final Set<Path> outstanding = new HashSet<>();
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final ExecutorService callbacks;
+
+    public InFlightWindow(Properties config) {
+        this.maxFiles = Math.max(1, Integer.parseInt(config.getProperty("inflight.max.files", "256")));
+        this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ack-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Answered requests cancel their timeout, which should not stay queued until it would have fired
+        this.timeouts.setRemoveOnCancelPolicy(true);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.callbacks = Executors.newFixedThreadPool(Math.max(1, Integer.parseInt(config.getProperty("ack.handler.threads", "2"))),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ack-handler-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Waits until all files fit into the window and none of them is outstanding already.
+    // A batch larger than the window is let through alone.
+    public synchronized void acquire(List<Path> filePaths) throws InterruptedException {
+        while (!fits(filePaths)) {
+            wait();
+        }
+        outstanding.addAll(filePaths);
+    }
+
+    private boolean fits(List<Path> filePaths) {
+        if (!outstanding.isEmpty() && outstanding.size() + filePaths.size() > maxFiles) {
+            return false;
+        }
+        for (Path filePath : filePaths) {
+            if (outstanding.contains(filePath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Once the file's acknowledgment was handled (deleted or moved to the failed folder)
+    public synchronized void release(Path filePath) {
+        if (outstanding.remove(filePath)) {
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isInFlight(Path filePath) {
+        return outstanding.contains(filePath);
+    }
+
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    // Fails the future with a TimeoutException unless it completes within timeoutMillis
+    public <V> CompletableFuture<V> withTimeout(CompletableFuture<V> future, long timeoutMillis) {
+        ScheduledFuture<?> timer = timeouts.schedule(
+                () -> future.completeExceptionally(new TimeoutException("No acknowledgment within " + timeoutMillis + " ms")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> timer.cancel(false));
+        return future;
+    }
+
+    // Where acknowledgments are handled, never the connection's reader thread
+    public Executor callbacks() {
+        return callbacks;
+    }
+}
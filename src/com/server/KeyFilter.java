@@ -0,0 +1,272 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which keys of a file are sent, compiled once per configuration.
+ *
+ * A key is sent if it matches an include rule (filter.regex and every filter.include.&lt;n&gt;,
+ * all keys when there are none) and no exclude rule (filter.exclude.&lt;n&gt;). Rules are regular
+ * expressions matched against the whole key, but the common shapes never run one: a plain
+ * literal is a hash lookup, "literal.*" and ".*literal" are looked up in a prefix or suffix trie
+ * and ".*" matches everything. Only the remaining rules are evaluated as regexes, and the outcome
+ * for a key that needed one is remembered (filter.cache.size keys, Defaults to 10000, 0 off).
+ */
+public class KeyFilter {
+
+    // Characters that make a regex more than a literal
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    // One side of the filter, include or exclude
+    private static final class Rules {
+        final List<Pattern> all = new ArrayList<>();
+        boolean matchesAll;
+        final Set<String> literals = new HashSet<>();
+        final Trie prefixes = new Trie();
+        final Trie suffixes = new Trie();
+        final List<Pattern> regexes = new ArrayList<>();
+
+        void add(String regex, String setting) {
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid '" + setting + "' in configuration");
+            }
+            all.add(pattern);
+
+            String body = regex.startsWith("^") ? regex.substring(1) : regex;
+            if (body.endsWith("$") && !body.endsWith("\\$")) {
+                body = body.substring(0, body.length() - 1);
+            }
+            if (body.equals(".*")) {
+                matchesAll = true;
+                return;
+            }
+            String literal = literal(body);
+            String prefix = body.endsWith(".*") ? literal(body.substring(0, body.length() - 2)) : null;
+            String suffix = body.startsWith(".*") ? literal(body.substring(2)) : null;
+            if (literal != null) {
+                literals.add(literal);
+            } else if (prefix != null) {
+                prefixes.add(prefix, false);
+            } else if (suffix != null) {
+                suffixes.add(suffix, true);
+            } else {
+                regexes.add(pattern);
+            }
+        }
+
+        boolean isEmpty() {
+            return all.isEmpty();
+        }
+
+        // Decided without a regex, null if one of the regex rules has to be tried
+        Boolean quickMatch(String key) {
+            if (matchesAll || literals.contains(key) || prefixes.matches(key, false) || suffixes.matches(key, true)) {
+                return true;
+            }
+            return regexes.isEmpty() ? Boolean.FALSE : null;
+        }
+
+        boolean regexMatch(String key) {
+            for (Pattern regex : regexes) {
+                if (regex.matcher(key).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Every rule as a regex, for keys where "." would not match everything
+        boolean fullMatch(String key) {
+            for (Pattern pattern : all) {
+                if (pattern.matcher(key).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Rule strings by their characters, reversed for suffixes
+    private static final class Trie {
+        private final Map<Character, Trie> children = new HashMap<>();
+        private boolean terminal;
+
+        void add(String value, boolean reversed) {
+            Trie node = this;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(reversed ? value.length() - 1 - i : i);
+                node = node.children.computeIfAbsent(c, next -> new Trie());
+            }
+            node.terminal = true;
+        }
+
+        // Whether a stored value is a prefix (suffix when reversed) of key
+        boolean matches(String key, boolean reversed) {
+            Trie node = this;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == key.length() || (node = node.children.get(key.charAt(reversed ? key.length() - 1 - i : i))) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Rules includes = new Rules();
+    private final Rules excludes = new Rules();
+    private final int cacheSize;
+    // Keys that needed a regex, and whether they were accepted
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+    private final String description;
+
+    private KeyFilter(int cacheSize, String description) {
+        this.cacheSize = cacheSize;
+        this.description = description;
+    }
+
+    // prefix is "" for the global settings or "root.<name>." for a root. A root with any filter setting of its own
+    // uses only its own rules, otherwise the global ones. IllegalArgumentException with a message naming the
+    // offending setting.
+    public static KeyFilter fromConfig(Properties config, String prefix) {
+        String source = !prefix.isEmpty() && !ruleKeys(config, prefix + "filter.").isEmpty() ? prefix : "";
+        List<String> includeKeys = new ArrayList<>();
+        if (config.getProperty(source + "filter.regex") != null) {
+            includeKeys.add(source + "filter.regex");
+        }
+        includeKeys.addAll(ruleKeys(config, source + "filter.include."));
+        Set<String> excludeKeys = ruleKeys(config, source + "filter.exclude.");
+
+        StringBuilder description = new StringBuilder();
+        for (String key : includeKeys) {
+            description.append(description.length() == 0 ? "" : " | ").append(config.getProperty(key));
+        }
+        if (includeKeys.isEmpty()) {
+            description.append(".*");
+        }
+        for (String key : excludeKeys) {
+            description.append(" except ").append(config.getProperty(key));
+        }
+
+        KeyFilter filter = new KeyFilter(Integer.parseInt(config.getProperty("filter.cache.size", "10000")), description.toString());
+        for (String key : includeKeys) {
+            filter.includes.add(config.getProperty(key), key);
+        }
+        if (includeKeys.isEmpty()) {
+            filter.includes.add(".*", source + "filter.regex");
+        }
+        for (String key : excludeKeys) {
+            filter.excludes.add(config.getProperty(key), key);
+        }
+        return filter;
+    }
+
+    private static Set<String> ruleKeys(Properties config, String keyPrefix) {
+        Set<String> keys = new TreeSet<>();
+        for (String name : config.stringPropertyNames()) {
+            if (name.startsWith(keyPrefix)) {
+                keys.add(name);
+            }
+        }
+        return keys;
+    }
+
+    // The entries of a properties file whose key is accepted, see filter(Properties)
+    public Map<String, String> filterFile(Path filePath) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(filePath)) {
+            properties.load(input);
+        }
+        return filter(properties);
+    }
+
+    // The entries whose key is accepted, under the key with surrounding whitespace trimmed
+    public Map<String, String> filter(Properties properties) {
+        Map<String, String> accepted = new HashMap<>();
+        for (String rawKey : properties.stringPropertyNames()) {
+            String key = rawKey.trim();
+            if (accepts(key)) {
+                accepted.put(key, properties.getProperty(rawKey));
+            }
+        }
+        return accepted;
+    }
+
+    public boolean accepts(String key) {
+        if (hasLineTerminator(key)) {
+            // "." stops at line terminators, so the shortcuts do not apply
+            return includes.fullMatch(key) && !excludes.fullMatch(key);
+        }
+        Boolean included = includes.quickMatch(key);
+        if (Boolean.FALSE.equals(included)) {
+            return false;
+        }
+        Boolean excluded = excludes.isEmpty() ? Boolean.FALSE : excludes.quickMatch(key);
+        if (Boolean.TRUE.equals(excluded)) {
+            return false;
+        }
+        if (included != null && excluded != null) {
+            return true;
+        }
+
+        Boolean decision = decisions.get(key);
+        if (decision == null) {
+            decision = (included != null || includes.regexMatch(key)) && (excluded != null || !excludes.regexMatch(key));
+            if (decisions.size() < cacheSize) {
+                decisions.put(key, decision);
+            }
+        }
+        return decision;
+    }
+
+    // The literal a regex stands for, null if it contains anything else
+    private static String literal(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                // An escaped symbol stands for itself, \d, \Q and the like do not
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(regex.charAt(++i));
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    private static boolean hasLineTerminator(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,419 @@
+package com.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.server.logging.AsyncLogger;
+import com.server.metrics.ServerMetrics;
+import com.server.protocol.Frame;
+import com.server.protocol.FrameIO;
+import com.server.protocol.MapCodec;
+import com.server.protocol.PayloadCompression;
+
+/**
+ * Non-blocking front end for the server (server.io.mode=nio, the default).
+ *
+ * A single selector thread accepts connections and reads from them without blocking.
+ * Bytes are buffered per connection and only once a whole message has arrived is a
+ * ServerLogic task handed to the worker pool, so idle or slow clients never hold a worker.
+ * Acknowledgements produced by the workers are queued back to the selector thread and
+ * written from there. A connection has at most one message on the pool at a time, the next
+ * one waits on the connection, so updates from a client are applied in the order it sent them.
+ *
+ * Both client protocols are understood: a framed (persistent) connection carries many MESSAGE
+ * frames whose ACK frames are written back while the connection stays open. A legacy connection
+ * carries one serialized map without a length prefix, so it is taken off the selector and handed
+ * to a pool worker that reads and acks it with blocking I/O, exactly like in blocking mode.
+ *
+ * A message the worker pool has no room for (server.queue.capacity) is answered
+ * Busy:&lt;server.busy.retry.after.ms&gt; without being stored. The answer is built from the frame
+ * header alone, so the selector thread never decodes a payload; it names no files and the client
+ * applies it to every file of the message.
+ */
+public class SelectorServer {
+
+    private final Properties config;
+    private final ExecutorService workerPool;
+    private final int maxMessageBytes;
+    private final long busyRetryAfterMillis;
+    // Messages one connection may have waiting for its previous one (server.queue.capacity, 0 for no limit)
+    private final int connectionQueueCapacity;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    public SelectorServer(Properties config, ExecutorService workerPool) {
+        this.config = config;
+        this.workerPool = workerPool;
+        this.maxMessageBytes = Integer.parseInt(config.getProperty("max.message.bytes", String.valueOf(FrameIO.MAX_FRAME_BYTES)));
+        this.busyRetryAfterMillis = Long.parseLong(config.getProperty("server.busy.retry.after.ms", "1000"));
+        this.connectionQueueCapacity = Integer.parseInt(config.getProperty("server.queue.capacity", "1000"));
+    }
+
+    public void serve(int port) throws IOException {
+        try (Selector selector = Selector.open();
+                ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            logToFile("Server started on port " + port + " (nio mode)");
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                // Run work handed over by the worker threads (queued acknowledgements)
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        logToFile("Error on client connection: " + e.getMessage());
+                        close(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key));
+            logToFile("Client connected: " + channel.socket().getInetAddress());
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        // Complete frames leave the buffer after every read, so it only ever holds the frame still arriving
+        int read;
+        while ((read = channel.read(connection.readBuffer)) > 0) {
+            connection.bytesReceived();
+            if (!key.isValid()) {
+                return; // Handed over as a legacy connection
+            }
+            if (!connection.readBuffer.hasRemaining()) {
+                connection.growReadBuffer();
+            }
+        }
+
+        if (read < 0) {
+            // Client finished sending; keep the channel around only while acks are still owed
+            connection.inputClosed = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (connection.pendingReplies == 0 && connection.outbound.isEmpty()) {
+                close(key);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        while (!connection.outbound.isEmpty()) {
+            ByteBuffer buffer = connection.outbound.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return; // Socket buffer full, wait for the next OP_WRITE
+            }
+            connection.outbound.poll();
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (connection.closeAfterWrite) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (connection != null && connection.compression.frames() > 0) {
+            logToFile("Compressed payloads on this connection: " + connection.compression.summary());
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logToFile("Error closing client connection: " + e.getMessage());
+        }
+    }
+
+    private void logToFile(String message) {
+        AsyncLogger.forConfig(config).info("[" + Thread.currentThread().getName() + "] " + message);
+    }
+
+    private class Connection {
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        // null until the first two bytes tell which protocol the client speaks
+        private Boolean framed;
+        private boolean preambleRead;
+        private MapCodec codec = MapCodec.SERIALIZED;
+        private final PayloadCompression compression = new PayloadCompression(config);
+        // ack.mode: set by a HELLO that advertises the client's ack listener
+        private AckChannel ackChannel;
+        private int pendingReplies;
+        // Whether a message of this connection is on the pool, the ones after it wait here in arrival order
+        private boolean running;
+        private final Queue<Message> waiting = new ArrayDeque<>();
+        private boolean inputClosed;
+        private boolean closeAfterWrite;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+
+        // The buffer is full of a frame that has not arrived completely yet
+        void growReadBuffer() throws IOException {
+            long maxBufferBytes = Math.min((long) maxMessageBytes + FrameIO.FRAME_OVERHEAD_BYTES, Integer.MAX_VALUE - 8);
+            if (readBuffer.capacity() >= maxBufferBytes) {
+                throw new IOException("Message exceeds max.message.bytes (" + maxMessageBytes + ")");
+            }
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min(readBuffer.capacity() * 2L, maxBufferBytes));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+
+        void bytesReceived() throws IOException {
+            if (framed == null) {
+                if (readBuffer.position() < 2) {
+                    return;
+                }
+                framed = FrameIO.isPreamble(readBuffer.get(0) & 0xFF, readBuffer.get(1) & 0xFF);
+            }
+            if (framed) {
+                dispatchFrames();
+            } else {
+                handOverLegacyConnection();
+            }
+        }
+
+        // Hands every complete MESSAGE frame in the buffer to the pool, a partial frame stays buffered
+        private void dispatchFrames() throws IOException {
+            readBuffer.flip();
+            try {
+                if (!preambleRead) {
+                    if (readBuffer.remaining() < FrameIO.PREAMBLE_BYTES) {
+                        return;
+                    }
+                    FrameIO.readPreamble(readBuffer);
+                    preambleRead = true;
+                }
+
+                Frame frame;
+                while ((frame = FrameIO.tryRead(readBuffer, maxMessageBytes)) != null) {
+                    if (frame.getType() == Frame.HELLO) {
+                        // Answered right here on the selector thread, before any MESSAGE that follows
+                        int acceptedFeatures = FrameIO.readFeatures(frame) & FrameIO.SUPPORTED_FEATURES;
+                        codec = MapCodec.forFeatures(acceptedFeatures);
+                        int ackPort = FrameIO.readAckPort(frame);
+                        if (ackPort > 0) {
+                            ackChannel = AckChannel.forClient(config, ((SocketChannel) key.channel()).socket()
+                                    .getInetAddress().getHostAddress(), ackPort);
+                        }
+                        outbound.add(FrameIO.encode(FrameIO.hello(acceptedFeatures)));
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        continue;
+                    }
+                    Frame received = frame;
+                    long requestId = frame.getRequestId();
+                    ServerMetrics.bytesReceived(received.getPayloadLength());
+                    MapCodec messageCodec = codec;
+                    AckChannel messageAckChannel = ackChannel;
+                    // Inflating and decoding happen on the worker, not on the selector thread
+                    if (frame.getType() == Frame.MESSAGE) {
+                        dispatch(Frame.ACK, requestId, () -> new ServerLogic(messageCodec.decode(inflate(received)), config,
+                                acknowledgment -> reply(ackFrame(Frame.ACK, requestId, acknowledgment)), messageAckChannel));
+                    } else if (frame.getType() == Frame.BATCH) {
+                        dispatch(Frame.BATCH_ACK, requestId, () -> {
+                            byte[] payload = inflate(received);
+                            return new ServerLogic(messageCodec.decodeBatch(payload, 0, payload.length), config,
+                                    acknowledgment -> reply(ackFrame(Frame.BATCH_ACK, requestId, acknowledgment)),
+                                    messageAckChannel);
+                        });
+                    } else {
+                        logToFile("Ignoring unexpected frame type: " + frame.getType());
+                    }
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        private byte[] inflate(Frame frame) throws IOException {
+            return compression.inflate(frame, maxMessageBytes).getPayload();
+        }
+
+        private ByteBuffer ackFrame(byte type, long requestId, String acknowledgment) {
+            return FrameIO.encode(new Frame(type, requestId, acknowledgment.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Legacy clients send exactly one serialized map with no length prefix, only a full decode tells
+        // when it is complete. The channel leaves the selector (deregistered by the next select) and a
+        // worker reads the rest of it blocking, starting with the bytes buffered here.
+        private void handOverLegacyConnection() {
+            SocketChannel channel = (SocketChannel) key.channel();
+            byte[] alreadyRead = new byte[readBuffer.position()];
+            readBuffer.flip();
+            readBuffer.get(alreadyRead);
+            key.cancel();
+            selectorTasks.add(() -> {
+                long queued = System.nanoTime();
+                try {
+                    channel.configureBlocking(true);
+                    ServerLogic serverLogic = new ServerLogic(channel.socket(), alreadyRead, config);
+                    workerPool.submit(() -> {
+                        ServerMetrics.record(ServerMetrics.Stage.QUEUE_WAIT, queued);
+                        serverLogic.run();
+                    });
+                } catch (IOException | RejectedExecutionException e) {
+                    logToFile("Closing legacy connection, cannot hand it to a worker: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        // Already gone
+                    }
+                }
+            });
+            selector.wakeup();
+        }
+
+        // The factory inflates and decodes the payload on the worker, which is timed as deserialization.
+        // ackType and requestId are all a Busy answer needs.
+        private void dispatch(byte ackType, long requestId, ServerLogicFactory factory) {
+            pendingReplies++;
+            long queued = System.nanoTime();
+            Message message = new Message(ackType, requestId, () -> {
+                try {
+                    long start = System.nanoTime();
+                    ServerMetrics.record(ServerMetrics.Stage.QUEUE_WAIT, queued);
+                    ServerLogic serverLogic = factory.create();
+                    ServerMetrics.record(ServerMetrics.Stage.DESERIALIZE, start);
+                    serverLogic.run();
+                } catch (IOException e) {
+                    logToFile("Error decoding client message: " + e.getMessage());
+                } finally {
+                    runOnSelector(this::messageDone);
+                }
+            });
+            if (!running) {
+                submit(message);
+            } else if (connectionQueueCapacity > 0 && waiting.size() >= connectionQueueCapacity) {
+                answerBusy(message);
+            } else {
+                waiting.add(message);
+            }
+        }
+
+        private void submit(Message message) {
+            try {
+                workerPool.submit(message.task);
+                running = true;
+            } catch (RejectedExecutionException e) {
+                answerBusy(message);
+            }
+        }
+
+        // Selector thread: the connection's message on the pool is done, the next waiting one goes to the pool
+        private void messageDone() {
+            running = false;
+            Message next;
+            while (!running && (next = waiting.poll()) != null) {
+                submit(next);
+            }
+            finished();
+        }
+
+        // Selector thread, pool queue full: "Busy:<ms>" under the message's request id, the payload stays undecoded
+        private void answerBusy(Message message) {
+            ServerMetrics.fileBusy(); // Counted per message, its files are not known without decoding
+            outbound.add(ackFrame(message.ackType, message.requestId, "Busy:" + busyRetryAfterMillis));
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            finished();
+        }
+
+        // Called from worker threads, the selector thread does the actual write
+        private void reply(ByteBuffer acknowledgment) {
+            runOnSelector(() -> {
+                outbound.add(acknowledgment);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+        }
+
+        // The connection is done once the client has hung up and every ack is written
+        private void finished() {
+            pendingReplies--;
+            if (!inputClosed || pendingReplies > 0) {
+                return;
+            }
+            if (outbound.isEmpty()) {
+                close(key);
+            } else {
+                closeAfterWrite = true;
+            }
+        }
+
+        private void runOnSelector(Runnable task) {
+            selectorTasks.add(() -> {
+                if (key.isValid()) {
+                    task.run();
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    private interface ServerLogicFactory {
+        ServerLogic create() throws IOException;
+    }
+
+    private static final class Message {
+        final byte ackType;
+        final long requestId;
+        final Runnable task;
+
+        Message(byte ackType, long requestId, Runnable task) {
+            this.ackType = ackType;
+            this.requestId = requestId;
+            this.task = task;
+        }
+    }
+}
@@ -1,210 +1,410 @@
 package com.server;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.net.Socket;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.server.logging.AsyncLogger;
+import com.server.metrics.ServerMetrics;
+import com.server.protocol.Frame;
+import com.server.protocol.FrameIO;
+import com.server.protocol.MapCodec;
+import com.server.protocol.PayloadCompression;
+import com.server.store.PropertyStore;
 
 public class ServerLogic implements Runnable {
 
+    private static final String SUCCESS = "Success";
+    private static final String FAILURE = "Failure";
+    private static final String RESYNC = "Resync";
+    private static final String BUSY = "Busy";
+    private static final String REMOVED_PREFIX = "##REMOVED##";
+    private static final String STREAM = "##STREAM##";
+
     private Socket clientSocket;
+    // Bytes of the connection the SelectorServer already read before handing it over, read again first
+    private byte[] alreadyRead;
     private Properties config;
-    private final String BACKUP_PREFIX = "_backup_";
-    private String checkSum;
+    // Set when the message was already read off the wire by the SelectorServer front end
+    private Map<String, String> receivedMessage;
+    private List<Map<String, String>> receivedBatch;
+    private Consumer<String> replyChannel;
+    // ack.mode: the ack listener the client advertised in its HELLO, server.host:ack.port if it did not
+    private AckChannel ackChannel;
+    // Set when the worker pool had no room: messages are answered Busy:<ms> instead of being stored
+    private long busyRetryAfterMillis = -1;
 
     public ServerLogic(Socket clientSocket, Properties config) {
         this.clientSocket = clientSocket;
         this.config = config;
     }
 
+    public ServerLogic(Socket clientSocket, byte[] alreadyRead, Properties config) {
+        this(clientSocket, config);
+        this.alreadyRead = alreadyRead;
+    }
+
+    public ServerLogic(Map<String, String> receivedMessage, Properties config, Consumer<String> replyChannel) {
+        this(receivedMessage, config, replyChannel, null);
+    }
+
+    public ServerLogic(Map<String, String> receivedMessage, Properties config, Consumer<String> replyChannel,
+            AckChannel ackChannel) {
+        this.receivedMessage = receivedMessage;
+        this.config = config;
+        this.replyChannel = replyChannel;
+        this.ackChannel = ackChannel;
+    }
+
+    public ServerLogic(List<Map<String, String>> receivedBatch, Properties config, Consumer<String> replyChannel,
+            AckChannel ackChannel) {
+        this.receivedBatch = receivedBatch;
+        this.config = config;
+        this.replyChannel = replyChannel;
+        this.ackChannel = ackChannel;
+    }
+
+    // Answers every message with Busy and the time the client should wait before sending it again
+    public void answerBusy(long retryAfterMillis) {
+        this.busyRetryAfterMillis = retryAfterMillis;
+    }
+
     @Override
     public void run() {
         try {
-            handleClientRequest();
+            if (receivedMessage != null) {
+                handleMessage(receivedMessage);
+            } else if (receivedBatch != null) {
+                handleBatch(receivedBatch);
+            } else {
+                handleClientRequest();
+            }
 
         } catch (ClassNotFoundException | IOException e) {
             System.err.println("Error handling client request: " + e.getMessage());
-        } catch (NoSuchAlgorithmException ex) {
-            System.err.println("Error calculating checksum: " + ex.getMessage());
         } finally {
             logToFile("Client disconnected. Active thread count: " + Thread.activeCount());
 
         }
     }
 
-    private void handleClientRequest() throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
+    private void handleClientRequest() throws IOException, ClassNotFoundException {
+        // Persistent clients open with the framed protocol preamble, legacy clients with a Java serialization header
+        InputStream socketInput = clientSocket.getInputStream();
+        if (alreadyRead != null) {
+            socketInput = new SequenceInputStream(new ByteArrayInputStream(alreadyRead), socketInput);
+        }
+        InputStream input = new BufferedInputStream(socketInput);
+        input.mark(2);
+        int firstByte = input.read();
+        int secondByte = input.read();
+        input.reset();
+        if (FrameIO.isPreamble(firstByte, secondByte)) {
+            handleFramedConnection(input);
+            return;
+        }
+
         // Create an ObjectInputStream to read the serialized map sent by the client
-        try (ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream())) {
+        CountingInputStream counted = new CountingInputStream(input);
+        try (ObjectInputStream ois = new ObjectInputStream(counted)) {
 
             logToFile("Client connected!");
 
-            // Deserialize the object (Map)
+            // Deserialize the object (Map), timed with the wait for its bytes as they are read together
+            long decodeStart = System.nanoTime();
             @SuppressWarnings("unchecked")
             Map<String, String> map = (Map<String, String>) ois.readObject();
-            logToFile("Received map: " + map);
-
-            // Calculate the hash of the map
-            this.checkSum = calculateMapHash(map);
-            // Process the Map
-            boolean processSuccess = processClientMessage(map);
-            // Acknowledgement mode where the server sends an acknowledgment to the client on ack.port
-            boolean ackMode = Boolean.parseBoolean(config.getProperty("ack.mode", "false"));
-            if(ackMode) {
-                sendAcknowledgmentToAckPort(processSuccess, map.get("##FILENAME##"));
-            }else{
-                sendAcknowledgment(processSuccess, map.get("##FILENAME##"));
+            ServerMetrics.record(ServerMetrics.Stage.DESERIALIZE, decodeStart);
+            ServerMetrics.bytesReceived(counted.count);
+            handleMessage(map);
+        }
+    }
+
+    // Bytes the legacy message took on the wire
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            count += read < 0 ? 0 : 1;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            count += Math.max(0, read);
+            return read;
+        }
+    }
+
+    // Persistent connection: many MESSAGE frames until the client disconnects, each acked with its own request id
+    private void handleFramedConnection(InputStream input) throws IOException {
+        int maxMessageBytes = Integer.parseInt(config.getProperty("max.message.bytes", String.valueOf(FrameIO.MAX_FRAME_BYTES)));
+        try (DataInputStream in = new DataInputStream(input);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))) {
+            FrameIO.readPreamble(in);
+            logToFile("Client connected! (persistent connection)");
+
+            // Java serialization unless the client negotiates the binary codec with a HELLO
+            MapCodec codec = MapCodec.SERIALIZED;
+            PayloadCompression compression = new PayloadCompression(config);
+            byte[] payloadBuffer = null;
+            Frame frame;
+            while ((frame = FrameIO.read(in, maxMessageBytes, payloadBuffer)) != null) {
+                payloadBuffer = frame.getPayload();
+                long decodeStart = System.nanoTime();
+                ServerMetrics.bytesReceived(frame.getPayloadLength());
+                frame = compression.inflate(frame, maxMessageBytes);
+                if (frame.getType() == Frame.HELLO) {
+                    int acceptedFeatures = FrameIO.readFeatures(frame) & FrameIO.SUPPORTED_FEATURES;
+                    codec = MapCodec.forFeatures(acceptedFeatures);
+                    FrameIO.write(out, FrameIO.hello(acceptedFeatures));
+                    out.flush();
+                    logToFile("Negotiated protocol features: " + acceptedFeatures);
+                    int ackPort = FrameIO.readAckPort(frame);
+                    if (ackPort > 0) {
+                        ackChannel = AckChannel.forClient(config, clientSocket.getInetAddress().getHostAddress(), ackPort);
+                    }
+                    continue;
+                }
+                long requestId = frame.getRequestId();
+                if (frame.getType() == Frame.MESSAGE) {
+                    this.replyChannel = acknowledgment -> sendFramedAcknowledgment(out, Frame.ACK, requestId, acknowledgment);
+                    Map<String, String> message = codec.decode(frame.getPayload(), 0, frame.getPayloadLength());
+                    ServerMetrics.record(ServerMetrics.Stage.DESERIALIZE, decodeStart);
+                    handleMessage(message);
+                } else if (frame.getType() == Frame.BATCH) {
+                    this.replyChannel = acknowledgment -> sendFramedAcknowledgment(out, Frame.BATCH_ACK, requestId, acknowledgment);
+                    List<Map<String, String>> batch = codec.decodeBatch(frame.getPayload(), 0, frame.getPayloadLength());
+                    ServerMetrics.record(ServerMetrics.Stage.DESERIALIZE, decodeStart);
+                    handleBatch(batch);
+                } else {
+                    logToFile("Ignoring unexpected frame type: " + frame.getType());
+                }
+            }
+            if (compression.frames() > 0) {
+                logToFile("Compressed payloads on this connection: " + compression.summary());
+            }
+        }
+    }
+
+    private void sendFramedAcknowledgment(DataOutputStream out, byte type, long requestId, String acknowledgment) {
+        try {
+            FrameIO.write(out, new Frame(type, requestId, acknowledgment.getBytes(StandardCharsets.UTF_8)));
+            out.flush();
+        } catch (IOException e) {
+            logToFile("Error sending acknowledgment: " + e.getMessage());
+        }
+    }
+
+    private void handleMessage(Map<String, String> map) {
+        String status = storeMessage(map);
+        // Acknowledgement mode where the server sends an acknowledgment to the client on ack.port
+        boolean ackMode = ackToAckPort();
+        if(ackMode) {
+            sendAcknowledgmentToAckPort(status, map);
+        }else{
+            sendAcknowledgment(status, map.get("##FILENAME##"));
+        }
+    }
+
+    // Every file of the batch is stored on its own, the reply is a single ack with one filename=status line per file
+    private void handleBatch(List<Map<String, String>> batch) {
+        logToFile("Received batch of " + batch.size() + " files");
+        boolean ackMode = ackToAckPort();
+        StringBuilder acknowledgment = new StringBuilder();
+        for (Map<String, String> map : batch) {
+            String status = storeMessage(map);
+            if (ackMode) {
+                sendAcknowledgmentToAckPort(status, map);
+            } else {
+                acknowledgment.append(map.get("##FILENAME##")).append("=").append(status).append("\n");
             }
-           
+        }
+        if (!ackMode) {
+            debugToFile(() -> "Sending batch acknowledgment: " + acknowledgment);
+            long ackStart = System.nanoTime();
+            replyChannel.accept(acknowledgment.toString());
+            ServerMetrics.record(ServerMetrics.Stage.ACK, ackStart);
+        }
+    }
+
+    // Busy answers go back on the connection even in ack.mode, where the client knows which send they belong to
+    private boolean ackToAckPort() {
+        return busyRetryAfterMillis < 0 && Boolean.parseBoolean(config.getProperty("ack.mode", "false"));
+    }
 
+    // Success, Failure, Resync (a delta whose base is not the stored version) or Busy:<ms> (not stored)
+    private String storeMessage(Map<String, String> map) {
+        debugToFile(() -> "Received map: " + map);
+        if (busyRetryAfterMillis >= 0) {
+            ServerMetrics.fileBusy();
+            return BUSY + ":" + busyRetryAfterMillis;
         }
+
+        // Process the Map, bounded by the number of concurrent writers allowed on the store directory
+        String status = FAILURE;
+        Semaphore storePermits = StorePermits.forDirectory(config);
+        try {
+            storePermits.acquire();
+            try {
+                status = processClientMessage(map);
+            } finally {
+                storePermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logToFile("Interrupted while waiting for store directory permit");
+        }
+        if (FAILURE.equals(status)) {
+            ServerMetrics.fileFailed();
+        } else if (RESYNC.equals(status)) {
+            ServerMetrics.fileResynced();
+        }
+        return status;
     }
 
-    private boolean processClientMessage(Map<String, String> message) {
+    private String processClientMessage(Map<String, String> message) {
         // Process the message received from the client
-        logToFile("Processing message: " + message);
+        debugToFile(() -> "Processing message: " + message);
 
         Properties messageProps = new Properties();
         messageProps.putAll(message);
 
         String propFileName = message.get("##FILENAME##");
         messageProps.remove("##FILENAME##"); // Remove FILENAME from properties
+        messageProps.remove("##FLUSH##");
+        messageProps.remove("##BASE##");
+        messageProps.remove("##HASH##");
+        messageProps.remove(STREAM);
+        messageProps.remove("##CHUNK##");
+        messageProps.remove("##LAST##");
+
+        // Delta sync: keys the client removed since the base version arrive as ##REMOVED##<key>
+        Set<String> removedKeys = new HashSet<>();
+        for (String key : message.keySet()) {
+            if (key.startsWith(REMOVED_PREFIX)) {
+                removedKeys.add(key.substring(REMOVED_PREFIX.length()));
+                messageProps.remove(key);
+            }
+        }
+        ServerMetrics.fileReceived(messageProps.size());
 
         if (propFileName == null || propFileName.isBlank()) {
             logToFile("Error: Received message missing file name.");
-            return false;
+            return FAILURE;
         }
 
-        // Sanitize the file name
-        propFileName = propFileName.replaceAll("[\\\\/:*?\"<>|]", "_");
+        propFileName = storeName(propFileName);
 
         try {
-            // Construct the file path
-            Path messagePath = Paths.get(this.config.getProperty("store.directory"), propFileName);
-
-            // Ensure the parent directory exists
-            if (!Files.exists(messagePath.getParent())) {
-                Files.createDirectories(messagePath.getParent());
-            }
-
-            try (FileChannel fileChannel = FileChannel.open(messagePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)){
-                FileLock lock = fileChannel.lock(); 
-                Properties existingProps = new Properties();
-                if (Files.exists(messagePath)) {
-                    existingProps.load(Files.newBufferedReader(messagePath, StandardCharsets.UTF_8));
-                }
-
-                // Handle backup if the file exists and backup.file is true
-                if (Files.exists(messagePath) && Boolean.parseBoolean(this.config.getProperty("backup.file", "false"))) {
-                    logToFile("Backing up the file: " + messagePath);
-                    Path backupDir = Paths.get(this.config.getProperty("store.directory"), "backup");
-                    if (!Files.exists(backupDir)) {
-                        Files.createDirectories(backupDir);
-                    }
-                    String backupFileName = String.format("%d"+BACKUP_PREFIX+"%s", System.currentTimeMillis(), propFileName);
-                    Path backupPath = backupDir.resolve(backupFileName);
-                    Files.move(messagePath, backupPath, StandardCopyOption.REPLACE_EXISTING);
-                    logToFile("File moved to backup location: " + backupPath);
-                }
-
-                // Append or overwrite based on config
-                if (Boolean.parseBoolean(this.config.getProperty("append.to.file", "true"))) {
-                    logToFile("Appending to file: " + messagePath);
-                    logToFile("Existing properties before merge: " + existingProps);
-                    existingProps.putAll(messageProps);
-                    logToFile("Merged properties: " + existingProps);
-                    existingProps.store(Files.newBufferedWriter(messagePath, StandardCharsets.UTF_8),
-                            "Appended properties");
-                } else {
-                    logToFile("Overwriting file: " + messagePath);
-                    messageProps.store(Files.newBufferedWriter(messagePath, StandardCharsets.UTF_8), "New Properties");
-                }
-                logToFile("Message successfully processed and written to: " + messagePath);
-                lock.release();
-                return true;
+            if (message.containsKey(STREAM)) {
+                // One chunk of a streamed transfer, the stored file only changes with the last one (always on disk)
+                boolean accepted = PropertyStore.forConfig(config).storeChunk(propFileName, message.get(STREAM),
+                        Integer.parseInt(message.getOrDefault("##CHUNK##", "0")),
+                        Boolean.parseBoolean(message.get("##LAST##")), messageProps);
+                return accepted ? SUCCESS : RESYNC;
             }
-
-        } catch (IOException e) {
+            // Clients that need the file on disk before the ack ask for it, otherwise store.cache.flush.before.ack decides
+            boolean flushBeforeAck = Boolean.parseBoolean(message.getOrDefault("##FLUSH##",
+                    config.getProperty("store.cache.flush.before.ack", "false")));
+            boolean applied = PropertyStore.forConfig(config).storeSynced(propFileName, messageProps, removedKeys,
+                    message.get("##BASE##"), message.get("##HASH##"), flushBeforeAck);
+            return applied ? SUCCESS : RESYNC;
+        } catch (IOException | NumberFormatException e) {
             logToFile("Error writing message to file: " + e.getMessage());
-            return false;
+            return FAILURE;
         }
     }
 
-    private void logToFile(String message) {
-        System.out.println(message);
-        System.out.println(this.config.getProperty("log.file.path"));
-        String logFilePath = this.config.getProperty("log.file.path", "./logs/client_log.txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write("[" + Thread.currentThread().getName() + "] " + message);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+    // The stored file for a name a client sent. A name without a directory or root part is stored like in
+    // earlier versions, with the characters a file name can not hold replaced by '_', except that '%' is written
+    // as %25. Names with a directory or root part have those characters (and '%') written as %XX instead, so
+    // they never share a stored file with each other or with a plain name. The dots of "." and ".." and the
+    // first character of the store's own directory names are written as %XX too.
+    static String storeName(String fileName) {
+        boolean nested = fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0;
+        boolean onlyDots = fileName.chars().allMatch(c -> c == '.');
+        boolean reserved = PropertyStore.isReserved(fileName);
+        StringBuilder name = new StringBuilder(fileName.length());
+        for (char c : fileName.toCharArray()) {
+            boolean unsafe = "\\/:*?\"<>|".indexOf(c) >= 0;
+            if (c == '%' || (nested && unsafe) || (onlyDots && c == '.') || (reserved && name.length() == 0)) {
+                name.append('%').append(String.format("%02X", (int) c));
+            } else if (unsafe) {
+                name.append('_');
+            } else {
+                name.append(c);
+            }
         }
+        return name.toString();
     }
 
-    private void sendAcknowledgmentToAckPort(boolean success, String propFileName) throws NoSuchAlgorithmException {
-
-        int ackPort = Integer.parseInt(config.getProperty("ack.port", "9090"));
+    private void logToFile(String message) {
+        AsyncLogger.forConfig(config).info("[" + Thread.currentThread().getName() + "] " + message);
+    }
 
-        try (Socket ackSocket = new Socket(config.getProperty("server.host"), ackPort);
-                PrintWriter ackOut = new PrintWriter(ackSocket.getOutputStream(), true)) {
-            // Build acknowledgment message
-            // String acknowledgment = propFileName + "=" + (success ? this.checkSum : "Failure");
-            String acknowledgment = propFileName + "=" + (success ? "Success" : "Failure");
-            logToFile("Sending acknowledgment: " + acknowledgment);
-            ackOut.println(acknowledgment); // Send acknowledgment to the new socket
+    // Map dumps and other per-message detail, only built when log.level=DEBUG
+    private void debugToFile(Supplier<String> message) {
+        AsyncLogger.forConfig(config).debug(() -> "[" + Thread.currentThread().getName() + "] " + message.get());
+    }
 
-        } catch (IOException e) {
-            logToFile("Error sending acknowledgment: " + e.getMessage());
+    // Queued on the client's persistent ack channel, written together with the acks around it.
+    // "filename=Success:<hash>" carries the hash of the received map, so the client can verify it against what it sent.
+    private void sendAcknowledgmentToAckPort(String status, Map<String, String> map) {
+        if (ackChannel == null) {
+            ackChannel = AckChannel.configured(config);
         }
+        long ackStart = System.nanoTime();
+        String acknowledgment = map.get("##FILENAME##") + "=" + status
+                + (SUCCESS.equals(status) ? ":" + Checksums.mapHash(map) : "");
+        logToFile("Sending acknowledgment: " + acknowledgment);
+        ackChannel.send(acknowledgment);
+        ServerMetrics.record(ServerMetrics.Stage.ACK, ackStart);
     }
 
-    private void sendAcknowledgment(boolean success, String propFileName) {
+    private void sendAcknowledgment(String status, String propFileName) {
+        long ackStart = System.nanoTime();
+        if (replyChannel != null) {
+            String acknowledgment = propFileName + "=" + status;
+            logToFile("Sending acknowledgment: " + acknowledgment);
+            replyChannel.accept(acknowledgment);
+            ServerMetrics.record(ServerMetrics.Stage.ACK, ackStart);
+            return;
+        }
         try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
             // Build acknowledgment message
-            String acknowledgment = propFileName + "=" + (success ? "Success" : "Failure");
+            String acknowledgment = propFileName + "=" + status;
             logToFile("Sending acknowledgment: " + acknowledgment);
             out.println(acknowledgment);  // Send acknowledgment to client
         } catch (IOException e) {
             logToFile("Error sending acknowledgment: " + e.getMessage());
         }
-    }
-
-    // Method to calculate the hash of the Map
-    private static String calculateMapHash(Map<String, String> propertiesMap) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        StringBuilder sb = new StringBuilder();
-
-        // Sort the Map by key to ensure consistency
-        propertiesMap.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> sb.append(entry.getKey()).append("=").append(entry.getValue()).append("\n"));
-
-        md.update(sb.toString().getBytes());
-        byte[] hashBytes = md.digest();
-        return bytesToHex(hashBytes);
-    }
-
-    // Helper method to convert byte array to hex string
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : bytes) {
-            hexString.append(String.format("%02x", b));
-        }
-        return hexString.toString();
+        ServerMetrics.record(ServerMetrics.Stage.ACK, ackStart);
     }
 
 }
@@ -1,8 +1,6 @@
 package com.server;
 
-import java.io.BufferedWriter;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
@@ -11,17 +9,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.server.logging.AsyncLogger;
+import com.server.metrics.ServerMetrics;
 
 public class ServerThreader extends Thread {
     public static void main(String[] args) {
-         if (args.length < 1) {
-            // logToFile("Please provide the path to the properties file as a command-line argument.", );
+        if (args.length < 1) {
+            System.err.println("Please provide the path to the properties file as a command-line argument.");
             return;
         }
 
-        System.out.println("properties file as a command-line argument.");
         // Read the configuration file from the command line argument
         Path configPath = Paths.get(args[0]);
 
@@ -47,8 +53,24 @@ public class ServerThreader extends Thread {
         // If port is not provided in Config it will be defaulted to 8080
         int port = config.getProperty("server.port") != null ? Integer.parseInt(config.getProperty("server.port")) : 8080;
         int threadPoolLimit = config.getProperty("thread.pool.limit") != null ? Integer.parseInt(config.getProperty("thread.pool.limit")) : 4;
-        ExecutorService threadPool = Executors.newFixedThreadPool(threadPoolLimit); // Added
+        ExecutorService threadPool = createWorkerPool(config, threadPoolLimit);
+        // Stage timings and counters as MBeans, and in metrics.dump.file if set
+        ServerMetrics.install(config, threadPool);
+
+
+        // nio mode (the default) keeps connections on a selector thread and only uses the pool for complete messages,
+        // server.io.mode=blocking gives every connection a pool worker for as long as it is open
+        if ("nio".equalsIgnoreCase(config.getProperty("server.io.mode", "nio"))) {
+            try {
+                new SelectorServer(config, threadPool).serve(port);
+            } catch (IOException e) {
+                System.err.println("Error creating server socket: " + e.getMessage());
+            }
+            return;
+        }
 
+        // Connections the full pool turned away are answered Busy here, beyond that they are closed
+        ExecutorService busyResponder = createBusyResponder(config);
 
         // Create a server Socket
         try (ServerSocket serverSocket = new ServerSocket(port)){
@@ -70,27 +92,83 @@ public class ServerThreader extends Thread {
                 // clientThread.start(); // Start the client handler thread
 
                 // Submit the client task to the thread pool
-                threadPool.submit(new ServerLogic(clientSocket, config));
-
-                // timeout for 5 secs testing
-
-                Thread.sleep(0);
+                ServerLogic serverLogic = new ServerLogic(clientSocket, config);
+                long accepted = System.nanoTime();
+                try {
+                    threadPool.submit(() -> {
+                        ServerMetrics.record(ServerMetrics.Stage.QUEUE_WAIT, accepted);
+                        serverLogic.run();
+                    });
+                } catch (RejectedExecutionException e) {
+                    answerBusy(clientSocket, config, busyResponder);
+                }
             }
 
-        }catch (IOException | InterruptedException e) {
+        }catch (IOException e) {
             System.err.println("Error creating server socket: " + e.getMessage());
             return;
         }
     }
 
-     private static void logToFile(String message, Properties config) {
-        System.out.println(message);
-        String logFilePath = config.getProperty("log.file.path", "./logs/client_log.txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write(message);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+    // server.executor=virtual runs every ServerLogic on its own virtual thread instead of the fixed pool,
+    // concurrency is then bounded per store directory by store.concurrency.limit (see StorePermits). As many
+    // tasks as server.queue.capacity may wait for those permits, beyond that they are rejected and answered Busy
+    private static ExecutorService createWorkerPool(Properties config, int threadPoolLimit) {
+        if ("virtual".equalsIgnoreCase(config.getProperty("server.executor", "platform"))) {
+            try {
+                // Looked up reflectively so the server still compiles and runs on Java 17
+                ExecutorService virtualPool = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logToFile("Using virtual thread executor", config);
+                int capacity = Integer.parseInt(config.getProperty("server.queue.capacity", "1000"));
+                if (capacity <= 0) {
+                    return virtualPool;
+                }
+                return new GatedExecutor(virtualPool, Integer.parseInt(config.getProperty("store.concurrency.limit", "16")) + capacity);
+            } catch (ReflectiveOperationException e) {
+                logToFile("Virtual threads need Java 21 or newer, using fixed thread pool of " + threadPoolLimit, config);
+            }
+        }
+        return new ThreadPoolExecutor(threadPoolLimit, threadPoolLimit, 0L, TimeUnit.MILLISECONDS, workQueue(config));
+    }
+
+    // server.queue.capacity (Defaults to 1000, 0 for no limit) connections (nio: messages) wait for a worker,
+    // more are rejected and answered Busy
+    private static BlockingQueue<Runnable> workQueue(Properties config) {
+        int capacity = Integer.parseInt(config.getProperty("server.queue.capacity", "1000"));
+        return capacity > 0 ? new ArrayBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+    }
+
+    // server.busy.threads (Defaults to 1) answer rejected connections, with as many waiting as server.queue.capacity allows
+    private static ExecutorService createBusyResponder(Properties config) {
+        int busyThreads = Math.max(1, Integer.parseInt(config.getProperty("server.busy.threads", "1")));
+        return new ThreadPoolExecutor(busyThreads, busyThreads, 0L, TimeUnit.MILLISECONDS, workQueue(config), runnable -> {
+            Thread thread = new Thread(runnable, "busy-responder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Every message on the connection is answered Busy:<server.busy.retry.after.ms> (Defaults to 1000) and not stored,
+    // until the client closes it to reconnect, or after server.busy.idle.timeout.ms (Defaults to 5000) without a message
+    private static void answerBusy(Socket clientSocket, Properties config, ExecutorService busyResponder) {
+        logToFile("Worker pool full, answering Busy to: " + clientSocket.getInetAddress(), config);
+        ServerLogic serverLogic = new ServerLogic(clientSocket, config);
+        serverLogic.answerBusy(Long.parseLong(config.getProperty("server.busy.retry.after.ms", "1000")));
+        try {
+            clientSocket.setSoTimeout(Integer.parseInt(config.getProperty("server.busy.idle.timeout.ms", "5000")));
+            busyResponder.execute(serverLogic);
+        } catch (IOException | RejectedExecutionException e) {
+            logToFile("Closing connection, cannot answer Busy: " + clientSocket.getInetAddress(), config);
+            try {
+                clientSocket.close();
+            } catch (IOException closeError) {
+                // Already gone
+            }
         }
     }
+
+    private static void logToFile(String message, Properties config) {
+        AsyncLogger.forConfig(config).info(message);
+    }
 }
@@ -0,0 +1,151 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Holds detected files back until they are completely written.
+ *
+ * Create and modify events both (re)start the window of a file. A file is handed to the pipeline
+ * once its size and modification time stayed the same, without any new event, for
+ * watch.settle.ms (Defaults to 500). All events of a burst for the same file end up as that one
+ * hand-over, and a file that is gone by then (deleted or moved away) is dropped.
+ *
+ * watch.settle.ms=0 turns this off: only create events are handled and every file goes to the
+ * pipeline right away.
+ */
+public class SettleWindow {
+
+    private static final class Pending {
+        // Updated by the watcher thread, read by the checker, always inside pending.compute
+        long lastEventMillis = System.currentTimeMillis();
+        int events = 1;
+        long size;
+        long modifiedMillis;
+    }
+
+    private final Properties config;
+    private final FilePipeline<?> pipeline;
+    private final long settleMillis;
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService checker;
+
+    public SettleWindow(Properties config, FilePipeline<?> pipeline) {
+        this.config = config;
+        this.pipeline = pipeline;
+        this.settleMillis = Long.parseLong(config.getProperty("watch.settle.ms", "500"));
+        this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watch-settle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The events to register the monitored directory for
+    public WatchEvent.Kind<?>[] eventKinds() {
+        return settleMillis > 0
+                ? new WatchEvent.Kind<?>[] { StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY }
+                : new WatchEvent.Kind<?>[] { StandardWatchEventKinds.ENTRY_CREATE };
+    }
+
+    // Called on the watcher thread for every create or modify event of a file
+    public void fileChanged(Path filePath) throws InterruptedException {
+        if (settleMillis <= 0) {
+            pipeline.submit(filePath);
+            return;
+        }
+        boolean[] started = new boolean[1];
+        pending.compute(filePath, (path, known) -> {
+            if (known == null) {
+                started[0] = true;
+                Pending fresh = new Pending();
+                observe(path, fresh);
+                return fresh;
+            }
+            known.lastEventMillis = System.currentTimeMillis();
+            known.events++;
+            return known;
+        });
+        if (started[0]) {
+            checker.schedule(() -> check(filePath), settleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public int pendingFiles() {
+        return pending.size();
+    }
+
+    // Waiting for its window to pass
+    public boolean isPending(Path filePath) {
+        return pending.containsKey(filePath);
+    }
+
+    public long settleMillis() {
+        return settleMillis;
+    }
+
+    private void check(Path filePath) {
+        long[] recheckMillis = new long[1];
+        Pending[] settled = new Pending[1];
+        // Decided inside compute, so an event cannot slip in between the decision and the removal
+        pending.computeIfPresent(filePath, (path, file) -> {
+            long previousSize = file.size;
+            long previousModified = file.modifiedMillis;
+            if (!observe(path, file)) {
+                return null; // Deleted or moved away meanwhile
+            }
+            long quietMillis = System.currentTimeMillis() - file.lastEventMillis;
+            if (quietMillis < settleMillis) {
+                recheckMillis[0] = settleMillis - quietMillis;
+                return file;
+            }
+            if (file.size != previousSize || file.modifiedMillis != previousModified) {
+                recheckMillis[0] = settleMillis; // Changed without an event reaching us
+                return file;
+            }
+            settled[0] = file;
+            return null; // An event that arrives from here on starts a new window
+        });
+
+        if (recheckMillis[0] > 0) {
+            checker.schedule(() -> check(filePath), recheckMillis[0], TimeUnit.MILLISECONDS);
+        } else if (settled[0] == null) {
+            AsyncLogger.forConfig(config).debug(() -> "Dropping " + filePath + ", it no longer exists");
+        } else {
+            int events = settled[0].events;
+            AsyncLogger.forConfig(config).debug(() -> "Settled " + filePath + " after " + events + " events");
+            try {
+                pipeline.submit(filePath); // May wait for room in the pipeline, which holds back later files as well
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Records the current size and modification time, false if the file is gone
+    private static boolean observe(Path filePath, Pending file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            file.size = attributes.size();
+            file.modifiedMillis = attributes.lastModifiedTime().toMillis();
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // Unreadable right now, the pipeline reports it if it stays that way
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds how many ServerLogic tasks may work on the same store.directory at once.
+ *
+ * With server.executor=virtual there is no longer a fixed number of worker threads, so this is
+ * what keeps the amount of concurrent file I/O in check. The limit is set with
+ * store.concurrency.limit (Defaults to 16) and shared by every request for that directory.
+ */
+public final class StorePermits {
+
+    private static final ConcurrentHashMap<Path, Semaphore> PERMITS = new ConcurrentHashMap<>();
+
+    private StorePermits() {
+    }
+
+    public static Semaphore forDirectory(Properties config) {
+        Path storeDirectory = Paths.get(config.getProperty("store.directory", "")).toAbsolutePath().normalize();
+        return PERMITS.computeIfAbsent(storeDirectory,
+                directory -> new Semaphore(Integer.parseInt(config.getProperty("store.concurrency.limit", "16")), true));
+    }
+}
@@ -0,0 +1,90 @@
+package com.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side of delta sync: remembers the last version of every file the server acknowledged.
+ *
+ * A version is the filtered properties map plus its content hash (Checksums.mapHash). When a
+ * file with a known version is sent again, only added and changed keys go out, removed keys as
+ * ##REMOVED##&lt;key&gt;, together with the hash of the acknowledged version (##BASE##) and of
+ * the new one (##HASH##). A server whose stored version differs answers Resync and gets the whole
+ * map instead.
+ */
+public class SyncIndex {
+
+    public static final String RESYNC = "Resync";
+
+    private static final class Version {
+        final String hash;
+        final Map<String, String> properties;
+
+        Version(String hash, Map<String, String> properties) {
+            this.hash = hash;
+            this.properties = properties;
+        }
+    }
+
+    private final Map<String, Version> acknowledged = new ConcurrentHashMap<>();
+    // Sent but not yet acknowledged, promoted to acknowledged on Success
+    private final Map<String, Version> pending = new ConcurrentHashMap<>();
+
+    // Builds the message for the file: a delta when the server supports it and has a version to apply it to
+    public Map<String, String> prepare(String fileName, Map<String, String> properties, boolean deltaSupported) {
+        if (!deltaSupported) {
+            acknowledged.remove(fileName);
+            return new HashMap<>(properties);
+        }
+        Version version = new Version(Checksums.mapHash(properties), new HashMap<>(properties));
+        pending.put(fileName, version);
+
+        Version base = acknowledged.get(fileName);
+        if (base == null) {
+            return fullMessage(version);
+        }
+
+        Map<String, String> delta = new HashMap<>();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (!property.getValue().equals(base.properties.get(property.getKey()))) {
+                delta.put(property.getKey(), property.getValue());
+            }
+        }
+        for (String key : base.properties.keySet()) {
+            if (!properties.containsKey(key)) {
+                delta.put("##REMOVED##" + key, "");
+            }
+        }
+        // Not worth it when most of the file changed
+        if (delta.size() >= properties.size()) {
+            return fullMessage(version);
+        }
+        delta.put("##BASE##", base.hash);
+        delta.put("##HASH##", version.hash);
+        return delta;
+    }
+
+    // The whole last prepared version, sent when the server answered Resync
+    public Map<String, String> resyncMessage(String fileName) {
+        Version version = pending.get(fileName);
+        return version == null ? null : fullMessage(version);
+    }
+
+    // status is the server's answer for the file, null if none arrived
+    public void acknowledged(String fileName, String status) {
+        Version version = pending.remove(fileName);
+        if (version != null && "Success".equals(status)) {
+            acknowledged.put(fileName, version);
+        } else if (!BusyBackoff.isBusy(status)) {
+            // Unknown what the server has now, the next send is a full one. After Busy it still has the acknowledged version
+            acknowledged.remove(fileName);
+        }
+    }
+
+    private static Map<String, String> fullMessage(Version version) {
+        Map<String, String> message = new HashMap<>(version.properties);
+        message.put("##HASH##", version.hash);
+        return message;
+    }
+}
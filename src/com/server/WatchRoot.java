@@ -0,0 +1,158 @@
+package com.server;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * One directory tree watched by a client.
+ *
+ * Without monitored.roots the client watches the single monitored.directory. Otherwise
+ * monitored.roots lists root names, and each root is configured with root.&lt;name&gt;.directory
+ * plus optional root.&lt;name&gt;.recursive, root.&lt;name&gt;.filter.* (see KeyFilter),
+ * root.&lt;name&gt;.server.host and root.&lt;name&gt;.server.port, which fall back to
+ * monitored.recursive (Defaults to false), filter.*, server.host and server.port.
+ *
+ * A file is sent under its path relative to the root ("sub/a.properties"), so files directly in
+ * the root keep their plain name. With monitored.roots the root name comes first
+ * ("orders/sub/a.properties"), so files with the same relative path in two roots stay apart on the
+ * server and their acks find the root that sent them.
+ */
+public class WatchRoot {
+
+    private final String name;
+    // Configured through monitored.roots, its name is part of the file names it sends
+    private final boolean named;
+    private final Path directory;
+    private final boolean recursive;
+    private final KeyFilter filter;
+    private final String serverHost;
+    private final int serverPort;
+
+    private WatchRoot(String name, boolean named, Path directory, boolean recursive, KeyFilter filter, String serverHost,
+            int serverPort) {
+        this.name = name;
+        this.named = named;
+        this.directory = directory;
+        this.recursive = recursive;
+        this.filter = filter;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+    }
+
+    // IllegalArgumentException with a message naming the offending setting
+    public static List<WatchRoot> fromConfig(Properties config) {
+        List<WatchRoot> roots = new ArrayList<>();
+        String names = config.getProperty("monitored.roots", "").trim();
+        if (names.isEmpty()) {
+            roots.add(create("default", false, config, "monitored.directory", ""));
+            return roots;
+        }
+        for (String name : names.split("\\s*,\\s*")) {
+            if (name.isEmpty() || name.contains("/")) {
+                throw new IllegalArgumentException("Invalid root name '" + name + "' in 'monitored.roots'");
+            }
+            roots.add(create(name, true, config, "root." + name + ".directory", "root." + name + "."));
+        }
+        return roots;
+    }
+
+    private static WatchRoot create(String name, boolean named, Properties config, String directoryKey, String prefix) {
+        String directory = config.getProperty(directoryKey);
+        if (directory == null || directory.isBlank()) {
+            throw new IllegalArgumentException("Missing '" + directoryKey + "' in configuration");
+        }
+        KeyFilter filter = KeyFilter.fromConfig(config, prefix);
+        boolean recursive = Boolean.parseBoolean(config.getProperty(prefix.isEmpty() ? "monitored.recursive" : prefix + "recursive",
+                config.getProperty("monitored.recursive", "false")));
+        String port = setting(config, prefix, "server.port", "8080");
+        try {
+            return new WatchRoot(name, named, Paths.get(directory).toAbsolutePath().normalize(), recursive, filter,
+                    setting(config, prefix, "server.host", null), Integer.parseInt(port.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port number '" + port + "' for root " + name);
+        }
+    }
+
+    // root.<name>.<key>, falling back to the global key
+    private static String setting(Properties config, String prefix, String key, String defaultValue) {
+        return config.getProperty(prefix + key, config.getProperty(key, defaultValue));
+    }
+
+    // The root a file belongs to, the innermost one when roots are nested (null if none)
+    public static WatchRoot containing(List<WatchRoot> roots, Path filePath) {
+        WatchRoot match = null;
+        for (WatchRoot root : roots) {
+            if (filePath.startsWith(root.directory)
+                    && (match == null || root.directory.getNameCount() > match.directory.getNameCount())) {
+                match = root;
+            }
+        }
+        return match;
+    }
+
+    public String fileNameFor(Path filePath) {
+        String relative = directory.relativize(filePath).toString().replace(File.separatorChar, '/');
+        return named ? name + "/" + relative : relative;
+    }
+
+    // The root that sent a file under fileNameForServer (null if none of them)
+    public static WatchRoot sending(List<WatchRoot> roots, String fileNameForServer) {
+        for (WatchRoot root : roots) {
+            if (!root.named || fileNameForServer.startsWith(root.name + "/")) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    // The local file this root sent under fileNameForServer, null if the name leads out of the root's directory
+    public Path pathFor(String fileNameForServer) {
+        return within(directory, named ? fileNameForServer.substring(name.length() + 1) : fileNameForServer);
+    }
+
+    // The file of a name received from the server in folder, null if the name leads out of it (an absolute
+    // path or "..")
+    public static Path within(Path folder, String fileName) {
+        Path base = folder.toAbsolutePath().normalize();
+        Path path = base.resolve(fileName).normalize();
+        return path.startsWith(base) && !path.equals(base) ? path : null;
+    }
+
+    // Roots sending to the same server share its connection
+    public String serverAddress() {
+        return serverHost + ":" + serverPort;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public KeyFilter getFilter() {
+        return filter;
+    }
+
+    public String getServerHost() {
+        return serverHost;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + directory + (recursive ? ", recursive" : "") + " -> " + serverAddress() + ")";
+    }
+}
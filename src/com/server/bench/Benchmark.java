@@ -0,0 +1,104 @@
+package com.server.bench;
+
+import java.util.Properties;
+
+/**
+ * One timed operation and the loop that measures it.
+ *
+ * Every iteration calls the operation for bench.iteration.ms (Defaults to 1000 ms), the first
+ * bench.warmup.iterations (Defaults to 3) are only there to let the JIT settle and are not recorded,
+ * the next bench.iterations (Defaults to 5) make up the result. What the operation returns is folded
+ * into a field so the work behind it cannot be optimized away.
+ */
+final class Benchmark {
+
+    @FunctionalInterface
+    interface Operation {
+        // Anything derived from the work done, e.g. a length or hash code
+        long run() throws Exception;
+    }
+
+    // Mean and spread of the measured iterations, in nanoseconds per operation
+    static final class Result {
+        final String name;
+        final double nanosPerOp;
+        final double errorPercent;
+        final long operations;
+
+        Result(String name, double nanosPerOp, double errorPercent, long operations) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.errorPercent = errorPercent;
+            this.operations = operations;
+        }
+
+        double opsPerSecond() {
+            return nanosPerOp == 0 ? 0 : 1_000_000_000d / nanosPerOp;
+        }
+    }
+
+    // Keeps results of the operations reachable, read once at the end of the run
+    static volatile long sink;
+
+    private final String name;
+    private final Operation operation;
+
+    Benchmark(String name, Operation operation) {
+        this.name = name;
+        this.operation = operation;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Result measure(Properties config) throws Exception {
+        long iterationNanos = Long.parseLong(config.getProperty("bench.iteration.ms", "1000")) * 1_000_000L;
+        int warmups = Integer.parseInt(config.getProperty("bench.warmup.iterations", "3"));
+        int iterations = Math.max(1, Integer.parseInt(config.getProperty("bench.iterations", "5")));
+
+        // Garbage left by the previous benchmark is not collected on this one's time
+        System.gc();
+        for (int i = 0; i < warmups; i++) {
+            iterate(iterationNanos);
+        }
+        double[] nanosPerOp = new double[iterations];
+        long operations = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iterate(iterationNanos);
+            nanosPerOp[i] = (double) measured[1] / measured[0];
+            operations += measured[0];
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / iterations;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / iterations;
+        }
+        return new Result(name, mean, mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean, operations);
+    }
+
+    // Operations done and nanoseconds taken, the clock is only read every few operations for the fast ones
+    private long[] iterate(long iterationNanos) throws Exception {
+        long accumulated = 0;
+        long operations = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                accumulated += operation.run();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed < iterationNanos / 100 && batch < 1 << 16) {
+                batch <<= 1;
+            }
+        } while (elapsed < iterationNanos);
+        sink += accumulated;
+        return new long[] { operations, elapsed };
+    }
+}
@@ -0,0 +1,259 @@
+package com.server.bench;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.server.Checksums;
+import com.server.KeyFilter;
+import com.server.ServerLogic;
+import com.server.protocol.MapCodec;
+
+/**
+ * Micro benchmarks of the per-file hot paths, run with an optional config file:
+ * `java com.server.bench.HotPathBenchmarks com/resources/BenchConfig.properties`
+ *
+ * Covers encoding and decoding the property map with both codecs, storing a file through ServerLogic
+ * with append.to.file on and off, the map checksum and key filtering, each for every key count in
+ * bench.key.counts (Defaults to 10,1000,10000). Results are written as CSV to bench.results.file
+ * (Defaults to bench-results.csv). When bench.baseline.file names the CSV of an earlier run, every
+ * benchmark more than bench.regression.percent (Defaults to 10) slower than there, and by more than the
+ * error of both runs, is reported and the run exits with status 1. bench.include selects benchmarks by a
+ * regex on their name (Defaults to all).
+ */
+public class HotPathBenchmarks {
+
+    private static final String CSV_HEADER = "benchmark,ns_per_op,error_percent,ops_per_second,operations";
+
+    // Keys changed by every store.append operation
+    private static final int UPDATED_KEYS = 10;
+
+    public static void main(String[] args) {
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (InputStream input = new FileInputStream(args[0])) {
+                config.load(input);
+            } catch (IOException e) {
+                System.err.println("Error loading configuration: " + e.getMessage());
+                return;
+            }
+        }
+
+        Path scratch = null;
+        int exitStatus = 0;
+        try {
+            scratch = Files.createTempDirectory("hot-path-bench");
+            List<Benchmark.Result> results = run(config, benchmarks(config, scratch));
+            writeResults(results, Paths.get(config.getProperty("bench.results.file", "bench-results.csv")));
+            String baseline = config.getProperty("bench.baseline.file");
+            if (baseline != null && !compare(results, Paths.get(baseline),
+                    Double.parseDouble(config.getProperty("bench.regression.percent", "10")))) {
+                exitStatus = 1;
+            }
+        } catch (Exception e) {
+            System.err.println("Benchmark run failed: " + e);
+            exitStatus = 2;
+        } finally {
+            deleteRecursively(scratch);
+        }
+        // The stores started for the benchmarks keep background threads
+        System.exit(exitStatus);
+    }
+
+    private static List<Benchmark> benchmarks(Properties config, Path scratch) throws IOException {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        // Run last, the stores keep threads and caches around after their benchmark
+        List<Benchmark> storeBenchmarks = new ArrayList<>();
+        for (String count : config.getProperty("bench.key.counts", "10,1000,10000").split(",")) {
+            int keys = Integer.parseInt(count.trim());
+            Map<String, String> message = message(keys);
+
+            // Client.sendMapToServer and the server's read of a MESSAGE frame
+            Map<String, MapCodec> codecs = new LinkedHashMap<>();
+            codecs.put("serialized", MapCodec.SERIALIZED);
+            codecs.put("binary", MapCodec.BINARY);
+            for (Map.Entry<String, MapCodec> codec : codecs.entrySet()) {
+                byte[] payload = codec.getValue().encode(message);
+                benchmarks.add(new Benchmark("codec." + codec.getKey() + ".encode.keys=" + keys,
+                        () -> codec.getValue().encode(message).length));
+                benchmarks.add(new Benchmark("codec." + codec.getKey() + ".decode.keys=" + keys,
+                        () -> codec.getValue().decode(payload).size()));
+            }
+
+            // ServerLogic.processClientMessage: an update of a few keys merged into a stored file of this size,
+            // and a file of this size replacing the stored one
+            storeBenchmarks.add(storeBenchmark("store.append.keys=" + keys, config, scratch.resolve("append-" + keys),
+                    true, message, message(Math.min(UPDATED_KEYS, keys))));
+            storeBenchmarks.add(storeBenchmark("store.overwrite.keys=" + keys, config, scratch.resolve("overwrite-" + keys),
+                    false, message, message));
+
+            // The checksum of every checksummed ack and delta sync
+            benchmarks.add(new Benchmark("checksum.mapHash.keys=" + keys, () -> Checksums.mapHash(message).length()));
+
+            // Key filtering of a file, with the KeyFilter and with the same rules as plain regexes
+            List<String> fileKeys = new ArrayList<>(message.keySet());
+            Properties filterConfig = new Properties();
+            filterConfig.setProperty("filter.regex", "db\\..*");
+            filterConfig.setProperty("filter.include.1", "app\\.name");
+            filterConfig.setProperty("filter.include.2", "cache\\.[a-z]+\\.\\d+");
+            filterConfig.setProperty("filter.exclude.1", ".*\\.password");
+            KeyFilter filter = KeyFilter.fromConfig(filterConfig, "");
+            List<Pattern> includes = List.of(Pattern.compile("db\\..*"), Pattern.compile("app\\.name"),
+                    Pattern.compile("cache\\.[a-z]+\\.\\d+"));
+            Pattern exclude = Pattern.compile(".*\\.password");
+            benchmarks.add(new Benchmark("filter.keyFilter.keys=" + keys, () -> {
+                long accepted = 0;
+                for (String key : fileKeys) {
+                    accepted += filter.accepts(key) ? 1 : 0;
+                }
+                return accepted;
+            }));
+            benchmarks.add(new Benchmark("filter.regex.keys=" + keys, () -> {
+                long accepted = 0;
+                for (String key : fileKeys) {
+                    boolean included = false;
+                    for (Pattern include : includes) {
+                        included |= include.matcher(key).matches();
+                    }
+                    accepted += included && !exclude.matcher(key).matches() ? 1 : 0;
+                }
+                return accepted;
+            }));
+        }
+        byte[] digest = new byte[32];
+        benchmarks.add(new Benchmark("checksum.toHex", () -> Checksums.toHex(digest).length()));
+        benchmarks.addAll(storeBenchmarks);
+        return benchmarks;
+    }
+
+    // A store of its own per benchmark (stores are shared per store.directory), seeded with the full file.
+    // The store settings of the config apply, e.g. to compare store.durability or store.engine.
+    private static Benchmark storeBenchmark(String name, Properties config, Path storeDirectory, boolean append,
+            Map<String, String> stored, Map<String, String> update) throws IOException {
+        Files.createDirectories(storeDirectory);
+        Properties storeConfig = new Properties();
+        storeConfig.putAll(config);
+        storeConfig.setProperty("store.directory", storeDirectory.toString());
+        storeConfig.setProperty("append.to.file", String.valueOf(append));
+        storeConfig.setProperty("ack.mode", "false");
+        storeConfig.setProperty("log.level", config.getProperty("log.level", "WARN"));
+        storeConfig.setProperty("log.console", config.getProperty("log.console", "false"));
+        storeConfig.setProperty("log.file.path", storeDirectory.resolve("bench_log.txt").toString());
+
+        Map<String, String> seed = new HashMap<>(stored);
+        seed.put("##FILENAME##", "bench.properties");
+        new ServerLogic(seed, storeConfig, ack -> { }).run();
+
+        Map<String, String> message = new HashMap<>(update);
+        message.put("##FILENAME##", "bench.properties");
+        long[] version = { 0 };
+        String changedKey = update.keySet().iterator().next();
+        return new Benchmark(name, () -> {
+            // A changed value every time, as a real update would have
+            message.put(changedKey, "value-" + version[0]++);
+            long[] acknowledged = { 0 };
+            new ServerLogic(message, storeConfig, ack -> acknowledged[0] = ack.length()).run();
+            return acknowledged[0];
+        });
+    }
+
+    // Keys shaped like a service config: db.*, cache.<name>.<n>, *.password and others
+    private static Map<String, String> message(int keys) {
+        String[] groups = { "db", "cache", "app", "service", "feature" };
+        String[] names = { "host", "port", "timeout", "password", "name", "ttl", "enabled" };
+        Map<String, String> message = new LinkedHashMap<>();
+        for (int i = 0; message.size() < keys; i++) {
+            String key = groups[i % groups.length] + "." + names[(i / groups.length) % names.length] + "." + i;
+            message.put(i == 0 ? "app.name" : key, "value-" + Integer.toHexString(key.hashCode()) + "-" + i);
+        }
+        return message;
+    }
+
+    private static List<Benchmark.Result> run(Properties config, List<Benchmark> benchmarks) throws Exception {
+        Pattern include = Pattern.compile(config.getProperty("bench.include", ".*"));
+        List<Benchmark.Result> results = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (!include.matcher(benchmark.getName()).find()) {
+                continue;
+            }
+            Benchmark.Result result = benchmark.measure(config);
+            System.out.printf("%-40s %14.1f ns/op  +- %5.1f%%  %14.0f ops/s%n", result.name, result.nanosPerOp,
+                    result.errorPercent, result.opsPerSecond());
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static void writeResults(List<Benchmark.Result> results, Path resultsFile) throws IOException {
+        Path parent = resultsFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8)) {
+            writer.write(CSV_HEADER);
+            writer.newLine();
+            for (Benchmark.Result result : results) {
+                writer.write(String.format(Locale.ROOT, "%s,%.1f,%.1f,%.0f,%d", result.name, result.nanosPerOp,
+                        result.errorPercent, result.opsPerSecond(), result.operations));
+                writer.newLine();
+            }
+        }
+        System.out.println("Results written to " + resultsFile);
+    }
+
+    // false if a benchmark got slower than the baseline by more than the allowed percentage
+    private static boolean compare(List<Benchmark.Result> results, Path baselineFile, double regressionPercent)
+            throws IOException {
+        // ns/op and error percent by benchmark
+        Map<String, double[]> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineFile, StandardCharsets.UTF_8)) {
+            String[] columns = line.split(",");
+            if (columns.length >= 3 && !line.equals(CSV_HEADER)) {
+                baseline.put(columns[0], new double[] { Double.parseDouble(columns[1]), Double.parseDouble(columns[2]) });
+            }
+        }
+
+        boolean passed = true;
+        for (Benchmark.Result result : results) {
+            double[] before = baseline.get(result.name);
+            if (before == null || before[0] == 0) {
+                continue;
+            }
+            // A difference within the spread of the two runs is noise, whatever the threshold
+            double change = 100 * (result.nanosPerOp - before[0]) / before[0];
+            if (change > regressionPercent && change > result.errorPercent + before[1]) {
+                System.out.printf("REGRESSION %s: %.1f ns/op, was %.1f ns/op (+%.1f%%)%n", result.name,
+                        result.nanosPerOp, before[0], change);
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "No regressions against " + baselineFile : "Regressions against " + baselineFile);
+        return passed;
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Could not remove " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.server.bench;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test of the watch-to-ack path on localhost, run with an optional config file:
+ * `java com.server.bench.LoadGenerator com/resources/LoadConfig.properties`
+ *
+ * For every mode in load.modes (Defaults to simple,ack) a Server and load.clients Clients (Defaults to 2)
+ * are started as separate JVMs, simple mode runs com.server.Client against a Server with ack.mode=false,
+ * ack mode runs com.server.multiClient.ClientThreader against one with ack.mode=true. Files of
+ * load.keys.per.file keys (Defaults to 20) with values of load.value.bytes (Defaults to 32) are dropped
+ * into the watched directories, round robin, at load.files.per.second in total (Defaults to 100) for
+ * load.duration.seconds (Defaults to 30).
+ *
+ * A file's latency is the time from its appearance in the watched directory to its deletion after the
+ * Success ack, files moved to the failed.directory instead count as failures, and files still there
+ * load.drain.timeout.ms after the last one was dropped (Defaults to 30000) as unfinished. The Server and
+ * Clients start from load.server.config and load.client.config when given, store, watched and failed
+ * directories, ports and log files are set by the load test. Results per mode are printed and written
+ * as CSV to load.results.file (Defaults to load-results.csv).
+ */
+public class LoadGenerator {
+
+    private static final String CSV_HEADER = "mode,clients,files_per_second,keys_per_file,value_bytes,files,succeeded,failed,"
+            + "unfinished,throughput_per_second,p50_ms,p99_ms,p999_ms,max_ms";
+
+    // Outcome of one mode
+    private static final class Run {
+        final String mode;
+        final int files;
+        final long[] latencies;
+        final int failed;
+        final int unfinished;
+        final double throughput;
+
+        Run(String mode, int files, long[] latencies, int failed, int unfinished, double throughput) {
+            this.mode = mode;
+            this.files = files;
+            this.latencies = latencies;
+            this.failed = failed;
+            this.unfinished = unfinished;
+            this.throughput = throughput;
+        }
+
+        // Nearest rank, in milliseconds
+        double percentile(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(fraction * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1_000_000d;
+        }
+    }
+
+    private final Properties config;
+    private final Path workDirectory;
+    private final int clients;
+    private final double filesPerSecond;
+    private final int durationSeconds;
+    private final int keysPerFile;
+    private final int valueBytes;
+
+    // Files dropped and not yet deleted, by path, with the System.nanoTime() they appeared at
+    private final Map<Path, Long> outstanding = new ConcurrentHashMap<>();
+    // Only touched by the completion thread until it has stopped
+    private long[] latencies = new long[1024];
+    private int completed;
+    private int failed;
+    private volatile long lastCompletion;
+
+    private LoadGenerator(Properties config, Path workDirectory) {
+        this.config = config;
+        this.workDirectory = workDirectory;
+        this.clients = Integer.parseInt(config.getProperty("load.clients", "2"));
+        this.filesPerSecond = Double.parseDouble(config.getProperty("load.files.per.second", "100"));
+        this.durationSeconds = Integer.parseInt(config.getProperty("load.duration.seconds", "30"));
+        this.keysPerFile = Integer.parseInt(config.getProperty("load.keys.per.file", "20"));
+        this.valueBytes = Integer.parseInt(config.getProperty("load.value.bytes", "32"));
+    }
+
+    public static void main(String[] args) {
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (InputStream input = new FileInputStream(args[0])) {
+                config.load(input);
+            } catch (IOException e) {
+                System.err.println("Error loading configuration: " + e.getMessage());
+                return;
+            }
+        }
+
+        List<Run> runs = new ArrayList<>();
+        try {
+            Path workDirectory = config.getProperty("load.work.directory") != null
+                    ? Files.createDirectories(Paths.get(config.getProperty("load.work.directory")))
+                    : Files.createTempDirectory("load-test");
+            System.out.println("Load test working directory: " + workDirectory);
+            for (String mode : config.getProperty("load.modes", "simple,ack").split(",")) {
+                mode = mode.trim().toLowerCase(Locale.ROOT);
+                if (!mode.equals("simple") && !mode.equals("ack")) {
+                    System.err.println("Unknown load.modes entry: " + mode);
+                    continue;
+                }
+                Run run = new LoadGenerator(config, workDirectory.resolve(mode)).run(mode);
+                print(run);
+                runs.add(run);
+            }
+            writeResults(config, runs, Paths.get(config.getProperty("load.results.file", "load-results.csv")));
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Load test failed: " + e);
+        }
+    }
+
+    private Run run(String mode) throws IOException, InterruptedException {
+        boolean ackMode = mode.equals("ack");
+        int serverPort = Integer.parseInt(config.getProperty("load.server.port", "18080"));
+        int ackPortBase = Integer.parseInt(config.getProperty("load.ack.port", "19090"));
+        Path staging = Files.createDirectories(workDirectory.resolve("staging"));
+
+        List<Process> processes = new ArrayList<>();
+        List<Path> watchedDirectories = new ArrayList<>();
+        try {
+            Properties serverConfig = template("load.server.config");
+            serverConfig.setProperty("server.port", String.valueOf(serverPort));
+            serverConfig.setProperty("store.directory", Files.createDirectories(workDirectory.resolve("store")).toString());
+            serverConfig.setProperty("ack.mode", String.valueOf(ackMode));
+            serverConfig.setProperty("log.file.path", workDirectory.resolve("logs/server_log.txt").toString());
+            serverConfig.setProperty("log.console", "false");
+            processes.add(start("com.server.ServerThreader", serverConfig, "server"));
+            awaitPort(serverPort, processes.get(0));
+
+            for (int i = 0; i < clients; i++) {
+                Path watched = Files.createDirectories(workDirectory.resolve("client-" + i + "/watched"));
+                // complete() looks for failed files next to the watched directory
+                Path failedDirectory = Files.createDirectories(workDirectory.resolve("client-" + i + "/failed"));
+                Properties clientConfig = template("load.client.config");
+                clientConfig.remove("monitored.roots");
+                clientConfig.setProperty("monitored.directory", watched.toString());
+                clientConfig.setProperty("failed.directory", failedDirectory.toString());
+                clientConfig.setProperty("server.host", "localhost");
+                clientConfig.setProperty("server.port", String.valueOf(serverPort));
+                clientConfig.setProperty("ack.port", String.valueOf(ackPortBase + i));
+                clientConfig.setProperty("log.file.path", workDirectory.resolve("logs/client_" + i + "_log.txt").toString());
+                clientConfig.setProperty("log.console", "false");
+                processes.add(start(ackMode ? "com.server.multiClient.ClientThreader" : "com.server.Client", clientConfig,
+                        "client-" + i));
+                watchedDirectories.add(watched);
+            }
+            Thread.sleep(Long.parseLong(config.getProperty("load.startup.ms", "2000")));
+
+            WatchService deletions = FileSystems.getDefault().newWatchService();
+            try {
+                for (Path watched : watchedDirectories) {
+                    watched.register(deletions, StandardWatchEventKinds.ENTRY_DELETE);
+                }
+                Thread completionThread = new Thread(() -> awaitCompletions(deletions), "load-completions");
+                completionThread.setDaemon(true);
+                completionThread.start();
+
+                int files = (int) Math.round(filesPerSecond * durationSeconds);
+                System.out.println("Mode " + mode + ": dropping " + files + " files into " + clients + " client directories");
+                long start = System.nanoTime();
+                generate(files, start, staging, watchedDirectories);
+
+                long drainDeadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getProperty("load.drain.timeout.ms", "30000")));
+                while (!outstanding.isEmpty() && System.nanoTime() < drainDeadline) {
+                    Thread.sleep(50);
+                    reconcile();
+                }
+                // Stops the completion thread
+                deletions.close();
+                completionThread.join();
+
+                long[] sorted = Arrays.copyOf(latencies, completed);
+                Arrays.sort(sorted);
+                double seconds = Math.max(1, lastCompletion - start) / 1_000_000_000d;
+                return new Run(mode, files, sorted, failed, outstanding.size(), completed / seconds);
+            } finally {
+                deletions.close();
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+            }
+        }
+    }
+
+    // Files appear in the watched directory whole (moved in from the staging directory), at the configured rate
+    private void generate(int files, long start, Path staging, List<Path> watchedDirectories) throws IOException {
+        Random random = new Random(files);
+        double intervalNanos = 1_000_000_000d / filesPerSecond;
+        for (int i = 0; i < files; i++) {
+            String fileName = "load_" + i + ".properties";
+            Path staged = staging.resolve(fileName);
+            writeFile(staged, i, random);
+
+            long due = start + (long) (i * intervalNanos);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Path target = watchedDirectories.get(i % watchedDirectories.size()).resolve(fileName);
+            // Registered before the move, the deletion may be seen before move() returns
+            outstanding.put(target, System.nanoTime());
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void writeFile(Path path, int sequence, Random random) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] value = new char[valueBytes];
+        for (int key = 0; key < keysPerFile; key++) {
+            for (int c = 0; c < value.length; c++) {
+                value[c] = (char) ('a' + random.nextInt(26));
+            }
+            content.append("load.").append(sequence).append(".key.").append(key).append('=').append(value).append('\n');
+        }
+        Files.write(path, content.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // Runs until the watch service is closed. A deleted file that now is in its client's failed directory was
+    // moved there, everything else was deleted after its ack.
+    private void awaitCompletions(WatchService deletions) {
+        try {
+            while (true) {
+                WatchKey key = deletions.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Lost deletions are found by reconcile() while draining
+                        continue;
+                    }
+                    complete(directory.resolve((Path) event.context()), System.nanoTime());
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Run is over
+        }
+    }
+
+    private synchronized void complete(Path path, long now) {
+        Long appeared = outstanding.remove(path);
+        if (appeared == null) {
+            return;
+        }
+        if (Files.exists(path.getParent().resolveSibling("failed").resolve(path.getFileName()))) {
+            failed++;
+            return;
+        }
+        if (completed == latencies.length) {
+            latencies = Arrays.copyOf(latencies, completed * 2);
+        }
+        latencies[completed++] = now - appeared;
+        lastCompletion = now;
+    }
+
+    // Deletions the watch service dropped (OVERFLOW): files no longer there are completed now
+    private void reconcile() {
+        long now = System.nanoTime();
+        for (Path path : outstanding.keySet()) {
+            if (!Files.exists(path)) {
+                complete(path, now);
+            }
+        }
+    }
+
+    // A copy of the template file named by the setting, empty if there is none
+    private Properties template(String setting) throws IOException {
+        Properties properties = new Properties();
+        String path = config.getProperty(setting);
+        if (path != null) {
+            try (InputStream input = new FileInputStream(path)) {
+                properties.load(input);
+            }
+        }
+        return properties;
+    }
+
+    // Same JVM and classpath as the load test, output goes to logs/<name>.out
+    private Process start(String mainClass, Properties processConfig, String name) throws IOException {
+        Path logs = Files.createDirectories(workDirectory.resolve("logs"));
+        Path configFile = workDirectory.resolve(name + ".properties");
+        try (OutputStream output = new FileOutputStream(configFile.toFile())) {
+            processConfig.store(output, "Load test " + name);
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmOptions = config.getProperty("load.jvm.options", "").trim();
+        if (!jvmOptions.isEmpty()) {
+            command.addAll(Arrays.asList(jvmOptions.split("\\s+")));
+        }
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), mainClass, configFile.toString()));
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(logs.resolve(name + ".out").toFile()).start();
+    }
+
+    private static void awaitPort(int port, Process server) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() > deadline) {
+                    throw new IOException("Server did not start listening on port " + port);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void print(Run run) {
+        System.out.printf(Locale.ROOT, "%-6s files %d, succeeded %d, failed %d (%.2f%%), unfinished %d%n", run.mode, run.files,
+                run.latencies.length, run.failed, run.files == 0 ? 0 : 100d * run.failed / run.files, run.unfinished);
+        System.out.printf(Locale.ROOT, "%-6s throughput %.1f files/s, latency p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms%n",
+                run.mode, run.throughput, run.percentile(0.5), run.percentile(0.99), run.percentile(0.999), run.percentile(1));
+    }
+
+    private static void writeResults(Properties config, List<Run> runs, Path resultsFile) throws IOException {
+        Path parent = resultsFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(resultsFile, StandardCharsets.UTF_8)) {
+            writer.write(CSV_HEADER);
+            writer.newLine();
+            for (Run run : runs) {
+                writer.write(String.format(Locale.ROOT, "%s,%s,%s,%s,%s,%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f", run.mode,
+                        config.getProperty("load.clients", "2"), config.getProperty("load.files.per.second", "100"),
+                        config.getProperty("load.keys.per.file", "20"), config.getProperty("load.value.bytes", "32"),
+                        run.files, run.latencies.length, run.failed, run.unfinished, run.throughput, run.percentile(0.5),
+                        run.percentile(0.99), run.percentile(0.999), run.percentile(1)));
+                writer.newLine();
+            }
+        }
+        System.out.println("Results written to " + resultsFile);
+    }
+}
@@ -0,0 +1,151 @@
+package com.server.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logging shared by the server and client classes.
+ *
+ * Callers only put the line into a bounded buffer (log.buffer.size, Defaults to 8192 lines);
+ * one writer thread per log file keeps the file open and drains the buffer in bulk, echoing to
+ * the console unless log.console=false. When the buffer is full new lines are dropped and counted
+ * instead of blocking the caller. log.level (DEBUG, INFO, WARN, ERROR, Defaults to INFO) gates
+ * the lines; debug lines take a Supplier so a disabled line is never even built.
+ */
+public final class AsyncLogger {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final ConcurrentHashMap<String, AsyncLogger> LOGGERS = new ConcurrentHashMap<>();
+    private static final int DRAIN_BATCH = 512;
+
+    private final String logFilePath;
+    private final Level level;
+    private final boolean console;
+    private final BlockingQueue<String> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private BufferedWriter writer;
+
+    private AsyncLogger(String logFilePath, Properties config) {
+        this.logFilePath = logFilePath;
+        this.level = parseLevel(config.getProperty("log.level", "INFO"));
+        this.console = Boolean.parseBoolean(config.getProperty("log.console", "true"));
+        this.buffer = new ArrayBlockingQueue<>(Integer.parseInt(config.getProperty("log.buffer.size", "8192")));
+
+        Thread writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainRemaining, "log-flush"));
+    }
+
+    // One logger (and writer thread) per log file, the first config seen for a file decides its settings
+    public static AsyncLogger forConfig(Properties config) {
+        String logFilePath = config.getProperty("log.file.path", "./logs/client_log.txt");
+        return LOGGERS.computeIfAbsent(logFilePath, path -> new AsyncLogger(path, config));
+    }
+
+    public boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+    public void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(message.get());
+        }
+    }
+
+    public void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(message);
+        }
+    }
+
+    public void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(message);
+        }
+    }
+
+    public void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(message);
+        }
+    }
+
+    private void enqueue(String message) {
+        if (!buffer.offer(message)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        List<String> lines = new ArrayList<>(DRAIN_BATCH);
+        while (true) {
+            try {
+                String first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                lines.add(first);
+                buffer.drainTo(lines, DRAIN_BATCH - 1);
+                write(lines);
+                lines.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void drainRemaining() {
+        List<String> lines = new ArrayList<>();
+        buffer.drainTo(lines);
+        write(lines);
+    }
+
+    // The file stays open, it is flushed once per drained batch rather than per line
+    private synchronized void write(List<String> lines) {
+        long droppedLines = dropped.getAndSet(0);
+        if (droppedLines > 0) {
+            lines.add(droppedLines + " log lines dropped, log buffer was full");
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new FileWriter(logFilePath, true), 64 * 1024);
+            }
+            for (String line : lines) {
+                if (console) {
+                    System.out.println(line);
+                }
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+            writer = null;
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.server.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Where the Server spends its time, one latency histogram per stage of a request plus counters.
+ *
+ * Stages are timed with System.nanoTime() where they happen (record(stage, start)), so one
+ * instance serves the whole JVM. install() registers everything as MXBeans under com.server
+ * (com.server:type=ServerMetrics and one com.server:type=ServerMetrics,stage=&lt;stage&gt; per stage)
+ * and, when metrics.dump.file is set, appends a snapshot to that file every
+ * metrics.dump.interval.ms (Defaults to 10000 ms).
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    public enum Stage {
+        // Accepted (or read by the selector) until a pool worker starts on it
+        QUEUE_WAIT("queueWait"),
+        // Payload to map, for legacy blocking clients this includes reading the socket
+        DESERIALIZE("deserialize"),
+        LOCK_WAIT("lockWait"),
+        // Reading the stored file before merging into it
+        LOAD("load"),
+        MERGE("merge"),
+        // Temporary file written, synced as store.durability says and moved over the stored file
+        WRITE("write"),
+        BACKUP("backup"),
+        ACK("ack");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder filesResynced = new LongAdder();
+    private final LongAdder filesBusy = new LongAdder();
+    private final LongAdder keysReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private volatile ExecutorService workerPool;
+    private boolean installed;
+
+    private ServerMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    // Time since start (a System.nanoTime() value) spent in the stage
+    public static void record(Stage stage, long start) {
+        INSTANCE.stages.get(stage).record(System.nanoTime() - start);
+    }
+
+    public static void fileReceived(int keys) {
+        INSTANCE.filesReceived.increment();
+        INSTANCE.keysReceived.add(keys);
+    }
+
+    public static void bytesReceived(long bytes) {
+        INSTANCE.bytesReceived.add(bytes);
+    }
+
+    public static void fileFailed() {
+        INSTANCE.filesFailed.increment();
+    }
+
+    public static void fileResynced() {
+        INSTANCE.filesResynced.increment();
+    }
+
+    public static void fileBusy() {
+        INSTANCE.filesBusy.increment();
+    }
+
+    public LatencyHistogram stage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    // Once per JVM, called with the pool ServerLogic tasks run on
+    public static synchronized void install(Properties config, ExecutorService workerPool) {
+        INSTANCE.workerPool = workerPool;
+        if (INSTANCE.installed) {
+            return;
+        }
+        INSTANCE.installed = true;
+
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(INSTANCE, new ObjectName("com.server:type=ServerMetrics"));
+            for (Stage stage : Stage.values()) {
+                mbeanServer.registerMBean(INSTANCE.stages.get(stage),
+                        new ObjectName("com.server:type=ServerMetrics,stage=" + stage.label()));
+            }
+        } catch (JMException e) {
+            AsyncLogger.forConfig(config).warn("Could not register metrics MBeans: " + e.getMessage());
+        }
+
+        String dumpFile = config.getProperty("metrics.dump.file");
+        if (dumpFile != null && !dumpFile.isBlank()) {
+            long intervalMillis = Long.parseLong(config.getProperty("metrics.dump.interval.ms", "10000"));
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Path dumpPath = Paths.get(dumpFile);
+            dumper.scheduleAtFixedRate(() -> INSTANCE.dump(dumpPath, config), intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+            AsyncLogger.forConfig(config).info("Writing metrics to " + dumpPath + " every " + intervalMillis + " ms");
+        }
+    }
+
+    // Appends the counters and one line per stage (times in microseconds)
+    private void dump(Path dumpPath, Properties config) {
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append("# ").append(new Date()).append('\n');
+        snapshot.append(String.format(Locale.ROOT, "files=%d failed=%d resynced=%d busy=%d keys=%d bytes=%d queueDepth=%d activeThreads=%d%n",
+                getFilesReceived(), getFilesFailed(), getFilesResynced(), getFilesBusy(), getKeysReceived(), getBytesReceived(),
+                getPoolQueueDepth(), getPoolActiveThreads()));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = stages.get(stage);
+            snapshot.append(String.format(Locale.ROOT, "%-12s count=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                    stage.label(), histogram.getCount(), histogram.getMeanMicros(), histogram.getP50Micros(),
+                    histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+        }
+        try {
+            Path parent = dumpPath.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (Writer writer = Files.newBufferedWriter(dumpPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                writer.write(snapshot.toString());
+            }
+        } catch (IOException e) {
+            AsyncLogger.forConfig(config).warn("Could not write metrics to " + dumpPath + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return filesReceived.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public long getFilesResynced() {
+        return filesResynced.sum();
+    }
+
+    @Override
+    public long getFilesBusy() {
+        return filesBusy.sum();
+    }
+
+    @Override
+    public long getKeysReceived() {
+        return keysReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public int getPoolQueueDepth() {
+        return workerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workerPool).getQueue().size() : 0;
+    }
+
+    @Override
+    public int getPoolActiveThreads() {
+        return workerPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workerPool).getActiveCount() : 0;
+    }
+
+    @Override
+    public void reset() {
+        filesReceived.reset();
+        filesFailed.reset();
+        filesResynced.reset();
+        filesBusy.reset();
+        keysReceived.reset();
+        bytesReceived.reset();
+        stages.values().forEach(LatencyHistogram::reset);
+    }
+}
@@ -0,0 +1,28 @@
+package com.server.metrics;
+
+/**
+ * Server wide counters, registered as com.server:type=ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+
+    long getFilesReceived();
+
+    long getFilesFailed();
+
+    long getFilesResynced();
+
+    // Files answered Busy because the worker pool queue (server.queue.capacity) was full
+    long getFilesBusy();
+
+    long getKeysReceived();
+
+    long getBytesReceived();
+
+    // Requests waiting for a worker of the thread.pool.limit pool, 0 for the virtual thread executor
+    int getPoolQueueDepth();
+
+    int getPoolActiveThreads();
+
+    // Zeroes the counters and every stage histogram
+    void reset();
+}
@@ -0,0 +1,20 @@
+package com.server.metrics;
+
+/**
+ * Latency of one processing stage, registered as com.server:type=ServerMetrics,stage=&lt;stage&gt;.
+ * Percentiles are bucket upper bounds, at most about 12% above the real value.
+ */
+public interface StageMetricsMXBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,136 @@
+package com.server.multiClient;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sends of WatcherRunnable that ClientListener has not seen an ack for yet.
+ *
+ * Every send keeps its hash, recorded once at send time (Checksums.mapHash of the sent map), so
+ * verifying an ack is a string comparison with the hash the server returns instead of reading the
+ * file again. A send also keeps the connection's reply future: the server only answers there when
+ * it turned the message away (Busy), so that answer belongs to exactly this send. Sends whose ack
+ * never arrives (e.g. the server dropped it) are handed out by expire() to be sent again.
+ */
+class ChecksumRegistry {
+
+    enum Result {
+        VERIFIED, MISMATCH, UNKNOWN
+    }
+
+    static final class Send {
+        final String fileNameForServer;
+        final Path filePath;
+        final String hash;
+        final long sentNanos = System.nanoTime();
+        // Guarded by this
+        private CompletableFuture<String> reply;
+        private boolean answered;
+
+        Send(String fileNameForServer, Path filePath, String hash) {
+            this.fileNameForServer = fileNameForServer;
+            this.filePath = filePath;
+            this.hash = hash;
+        }
+
+        // The future of the connection the send went out on, cancelled once the send is answered
+        synchronized void awaitReply(CompletableFuture<String> reply) {
+            this.reply = reply;
+            if (answered) {
+                reply.cancel(false);
+            }
+        }
+
+        // The connection stops waiting for a reply to it
+        private synchronized void answered() {
+            answered = true;
+            if (reply != null) {
+                reply.cancel(false);
+            }
+        }
+    }
+
+    // A file sent again before its first ack arrived has several sends outstanding, oldest first
+    private final Map<String, List<Send>> sent = new ConcurrentHashMap<>();
+
+    Send record(String fileNameForServer, Path filePath, String hash) {
+        Send send = new Send(fileNameForServer, filePath, hash);
+        sent.compute(fileNameForServer, (name, sends) -> {
+            List<Send> outstanding = sends == null ? new ArrayList<>(1) : sends;
+            outstanding.add(send);
+            return outstanding;
+        });
+        return send;
+    }
+
+    // Matches the server's hash against the sends of the file and forgets the matching one.
+    // UNKNOWN when nothing was recorded (e.g. sent before this client restarted).
+    Result verify(String fileNameForServer, String serverHash) {
+        Result[] result = { Result.UNKNOWN };
+        sent.computeIfPresent(fileNameForServer, (name, sends) -> {
+            Send matching = sends.get(0); // The ack belongs to the oldest send, which did not arrive intact
+            result[0] = Result.MISMATCH;
+            for (Send send : sends) {
+                if (send.hash.equals(serverHash)) {
+                    matching = send;
+                    result[0] = Result.VERIFIED;
+                    break;
+                }
+            }
+            sends.remove(matching);
+            matching.answered();
+            return sends.isEmpty() ? null : sends;
+        });
+        return result[0];
+    }
+
+    // A Failure ack (or one without a hash), the oldest outstanding send of the file is answered
+    void forgetOldest(String fileNameForServer) {
+        sent.computeIfPresent(fileNameForServer, (name, sends) -> {
+            sends.remove(0).answered();
+            return sends.isEmpty() ? null : sends;
+        });
+    }
+
+    // No ack is coming for this send (Busy, or it never got out), false if it was already answered
+    boolean forget(Send send) {
+        boolean[] removed = { false };
+        sent.computeIfPresent(send.fileNameForServer, (name, sends) -> {
+            removed[0] = sends.remove(send);
+            return sends.isEmpty() ? null : sends;
+        });
+        if (removed[0]) {
+            send.answered();
+        }
+        return removed[0];
+    }
+
+    boolean isOutstanding(String fileNameForServer) {
+        return sent.containsKey(fileNameForServer);
+    }
+
+    // Forgets and returns the sends that have waited longer than maxAgeNanos for their ack
+    List<Send> expire(long maxAgeNanos) {
+        List<Send> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        for (String fileNameForServer : sent.keySet()) {
+            sent.computeIfPresent(fileNameForServer, (name, sends) -> {
+                for (Iterator<Send> outstanding = sends.iterator(); outstanding.hasNext();) {
+                    Send send = outstanding.next();
+                    if (now - send.sentNanos > maxAgeNanos) {
+                        outstanding.remove();
+                        send.answered();
+                        expired.add(send);
+                    }
+                }
+                return sends.isEmpty() ? null : sends;
+            });
+        }
+        return expired;
+    }
+}
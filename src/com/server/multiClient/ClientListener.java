@@ -1,37 +1,59 @@
 package com.server.multiClient;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import com.server.BusyBackoff;
+import com.server.Checksums;
+import com.server.KeyFilter;
+import com.server.WatchRoot;
+import com.server.logging.AsyncLogger;
 
 public class ClientListener implements Runnable {
 
     private final BlockingQueue<String> acknowledgmentQueue; // Queue to store acknowledgments
     // private final Socket socket;
     private final Properties config;
-
-    public ClientListener(Properties config) {
+    // Acked file names are relative to one of these
+    private final List<WatchRoot> roots;
+    // Hashes WatcherRunnable recorded when it sent the files
+    private final ChecksumRegistry checksums;
+    // Files the server answered Busy are left in place and sent again by the watcher's backoff
+    private final BusyBackoff busyBackoff;
+    // ack.listener.threads single-thread workers that delete or move the acked files
+    private final ExecutorService[] ackWorkers;
+
+    public ClientListener(Properties config, List<WatchRoot> roots, ChecksumRegistry checksums, BusyBackoff busyBackoff) {
         // this.socket = socket;
         this.config = config;
+        this.roots = roots;
+        this.checksums = checksums;
+        this.busyBackoff = busyBackoff;
         this.acknowledgmentQueue = new LinkedBlockingQueue<>(); // Initialize the BlockingQueue
+        this.ackWorkers = new ExecutorService[Math.max(1, Integer.parseInt(config.getProperty("ack.listener.threads", "4")))];
+        for (int i = 0; i < ackWorkers.length; i++) {
+            String name = "ack-worker-" + (i + 1);
+            ackWorkers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     @Override
@@ -40,95 +62,138 @@ public class ClientListener implements Runnable {
 
         try (ServerSocket ackSocket = new ServerSocket(Integer.parseInt(config.getProperty("ack.port", "9090")))) {
             while (true) {
-                // This will block, waiting for the server to connect and send an ack
-                Socket clientSocket = ackSocket.accept();
-                logToFile("Received acknowledgment connection from server on ack.port", config);
-
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-                    String ackMessage;
-                    while ((ackMessage = reader.readLine()) != null) {
-                        processAcknowledgment(ackMessage);
-                    }
-                } catch (IOException e) {
-                    logToFile("Error reading acknowledgment from server: " + e.getMessage(), config);
-                } catch (NoSuchAlgorithmException ex) {
-                    logToFile("Error calculating checksum: " + ex.getMessage(), config);
-                } finally {
-                    clientSocket.close();
-                }
+                // Every server keeps one connection open and writes its acks to it in batches
+                Socket serverSocket = ackSocket.accept();
+                logToFile("Received acknowledgment connection from server on ack.port: " + serverSocket.getRemoteSocketAddress(), config);
+                Thread reader = new Thread(() -> readAcknowledgments(serverSocket), "ack-reader-" + serverSocket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
             }
         } catch (IOException e) {
             System.err.println("Error setting up acknowledgment socket or reading from server: " + e.getMessage());
         }
     }
 
-    private void processAcknowledgment(String ackMessage) throws IOException, NoSuchAlgorithmException {
+    // One thread per server connection, the acks themselves are processed on the ack workers
+    private void readAcknowledgments(Socket serverSocket) {
+        try (serverSocket;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream(), StandardCharsets.UTF_8))) {
+            String ackMessage;
+            while ((ackMessage = reader.readLine()) != null) {
+                String acknowledgment = ackMessage;
+                workerFor(acknowledgment).execute(() -> {
+                    try {
+                        processAcknowledgment(acknowledgment);
+                    } catch (IOException e) {
+                        logToFile("Error processing acknowledgment " + acknowledgment + ": " + e.getMessage(), config);
+                    }
+                });
+            }
+            logToFile("Acknowledgment connection closed by server: " + serverSocket.getRemoteSocketAddress(), config);
+        } catch (IOException e) {
+            logToFile("Error reading acknowledgment from server: " + e.getMessage(), config);
+        }
+    }
+
+    // Acks of the same file always go to the same worker, so they are processed in the order they arrived
+    private ExecutorService workerFor(String ackMessage) {
+        int separator = ackMessage.lastIndexOf('=');
+        String fileName = separator > 0 ? ackMessage.substring(0, separator) : ackMessage;
+        return ackWorkers[Math.floorMod(fileName.hashCode(), ackWorkers.length)];
+    }
+
+    private void processAcknowledgment(String ackMessage) throws IOException {
         logToFile("Received from server: " + ackMessage, config);
 
-        // Split ack to get the filename and status
-        String[] serverMessage = ackMessage.split("=");
-        if (serverMessage.length != 2) {
+        // "filename=status", a Success carries the server's hash of what it received as "Success:<hash>"
+        int separator = ackMessage.lastIndexOf('=');
+        if (separator <= 0) {
             logToFile("Invalid acknowledgment message: " + ackMessage, config);
+            return;
+        }
+        String fileNameForServer = ackMessage.substring(0, separator);
+        String status = ackMessage.substring(separator + 1).trim();
+        WatchRoot root = WatchRoot.sending(roots, fileNameForServer);
+        if (root == null) {
+            logToFile("Acknowledgment for a file no root sent: " + ackMessage, config);
+            return;
+        }
+        Path filePath = root.pathFor(fileNameForServer);
+        if (filePath == null) {
+            logToFile("Acknowledgment for a file outside its root: " + ackMessage, config);
+            return;
+        }
+
+        // "Busy:<retry after ms>", the server was overloaded and did not store the file. Servers answer Busy on
+        // the connection of the send it belongs to, one on ack.port can not tell which send it answers,
+        // so the sends stay outstanding until their ack or ack.expiry.ms
+        if (BusyBackoff.isBusy(status)) {
+            logToFile("Server busy, sending the file again later: " + filePath, config);
+            busyBackoff.retryLater(filePath, status);
+            return;
+        }
+        busyBackoff.answered(filePath);
+
+        String serverChecksum = null;
+        int hashSeparator = status.indexOf(':');
+        if (hashSeparator >= 0) {
+            serverChecksum = status.substring(hashSeparator + 1);
+            status = status.substring(0, hashSeparator);
+        }
+
+        if (!"Success".equals(status)) {
+            checksums.forgetOldest(fileNameForServer);
+            logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
+            moveFileToFailedFolder(filePath, fileNameForServer, config); // Move file to failed folder
+            return;
         }
 
-        // Delete file from Store.dir from config
-        String fileNameForServer = serverMessage[0];
-        String serverChecksum = serverMessage[1];
-        Path filePath = Paths.get(config.getProperty("monitored.directory", "store")).resolve(fileNameForServer);
-        Map<String, String> propertiesMap = propsToMap(config.getProperty("filter.regex", ".*"), filePath);
-        String clientChecksum = calculateMapHash(propertiesMap);
-        logToFile(clientChecksum, config);
-        logToFile(serverChecksum, config);
-        // Check if the message matches success or failure pattern
-        // if (ackMessage.contains("Failure")) {
-
-        //     logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
-        //     moveFileToFailedFolder(filePath, config); // Move file to failed folder
-        // } else if (clientChecksum.equals(serverChecksum)) {
-        //     logToFile("File processed successfully. Deleting the file: " + serverMessage[0], config);
-        //     Files.delete(filePath); // Delete the file if acknowledgment is Success
-        // } else {
-        //     // Invalid Message, Loggin it
-        //     logToFile("Invalid acknowledgment message: " + ackMessage, config);
-        // }
-
-        // Revert to old logic to check success and failure
-        if(ackMessage.contains("Success")) {
-            logToFile("File processed successfully. Deleting the file: " + serverMessage[0], config);
+        boolean verified;
+        if (serverChecksum == null) {
+            // Server predates checksummed acks, its Success is all there is
+            checksums.forgetOldest(fileNameForServer);
+            verified = true;
+        } else {
+            ChecksumRegistry.Result result = checksums.verify(fileNameForServer, serverChecksum);
+            if (result == ChecksumRegistry.Result.UNKNOWN) {
+                // Sent before this client started, the file itself is the only reference left
+                Map<String, String> propertiesMap = propsToMap(root.getFilter(), filePath);
+                verified = propertiesMap != null && Checksums.mapHash(propertiesMap).equals(serverChecksum);
+            } else {
+                verified = result == ChecksumRegistry.Result.VERIFIED;
+            }
+        }
+
+        if (verified) {
+            logToFile("File processed successfully. Deleting the file: " + fileNameForServer, config);
             Files.delete(filePath); // Delete the file if acknowledgment is Success
         } else {
-            logToFile("File processing failed. Moving file to failed folder: " + filePath, config);
-            moveFileToFailedFolder(filePath, config); // Move file to failed folder
+            logToFile("Checksum mismatch, server stored something else. Moving file to failed folder: " + filePath, config);
+            moveFileToFailedFolder(filePath, fileNameForServer, config);
         }
     }
 
     private static void logToFile(String message, Properties config) {
-        System.out.println(message);
-        String logFilePath = config.getProperty("log.file.path", "./logs/client_log.txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write(message);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
-        }
+        AsyncLogger.forConfig(config).info(message);
     }
 
-    private static void moveFileToFailedFolder(Path filePath, Properties config) {
+    // The file keeps the name it was sent under, so files of the same name from other directories or roots do not replace it
+    private static void moveFileToFailedFolder(Path filePath, String fileNameForServer, Properties config) {
         Path failedDir = Paths.get(config.getProperty("failed.directory", "failed"));
         logToFile("Failed directory path: " + failedDir.toString(), config);
+        Path failedFilePath = failedDir.resolve(fileNameForServer);
 
-        // Ensure the failed directory exists
+        // Ensure the failed directory (and the file's subdirectory in it) exists
         try {
-            if (!Files.exists(failedDir)) {
+            if (!Files.exists(failedFilePath.getParent())) {
                 logToFile("Failed directory does not exist. Creating it...", config);
-                Files.createDirectories(failedDir);
+                Files.createDirectories(failedFilePath.getParent());
             }
         } catch (IOException e) {
             logToFile("Failed to create failed directory: " + e.getMessage(), config);
             return; // Exit method since we cannot proceed without the directory
         }
 
-        Path failedFilePath = failedDir.resolve(filePath.getFileName());
         try {
             // Move and replace the file in the failed directory
             Files.move(filePath, failedFilePath, StandardCopyOption.REPLACE_EXISTING);
@@ -138,58 +203,13 @@ public class ClientListener implements Runnable {
         }
     }
 
-    // Method to calculate the hash of the Map
-    private static String calculateMapHash(Map<String, String> propertiesMap) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        StringBuilder sb = new StringBuilder();
-
-        // Sort the Map by key to ensure consistency
-        propertiesMap.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> sb.append(entry.getKey()).append("=").append(entry.getValue()).append("\n"));
-
-        md.update(sb.toString().getBytes());
-        byte[] hashBytes = md.digest();
-        return bytesToHex(hashBytes);
-    }
-
-    // Helper method to convert byte array to hex string
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : bytes) {
-            hexString.append(String.format("%02x", b));
-        }
-        return hexString.toString();
-    }
-
-    private Map<String, String> propsToMap(String filterRegex, Path filePath) {
-        Map<String, String> propsMap = new HashMap<>();
-
-        // Load the properties file
-        Pattern pattern = Pattern.compile(filterRegex);
-        Properties properties = new Properties();
-        try (FileInputStream fileInputStream = new FileInputStream(filePath.toFile())) {
-            // Load properties from the file
-            properties.load(fileInputStream);
+    private Map<String, String> propsToMap(KeyFilter filter, Path filePath) {
+        try {
+            return filter.filterFile(filePath);
         } catch (IOException e) {
             System.err.println(filePath + " - Error loading properties file: " + e.getMessage());
             System.err.println("Error loading properties file: " + e.getMessage());
             return null;
         }
-
-        // Iterate over the properties and filter based on regex
-        for (String key : properties.stringPropertyNames()) {
-            // Match the key with the provided regex pattern
-            logToFile("Checking key: " + key, config);
-            key = key.trim();
-            Matcher matcher = pattern.matcher(key);
-            if (matcher.matches()) {
-                // If it matches, print the key and value (this is just an example)
-                // logToFile(key + "=" + properties.getProperty(key));
-                propsMap.put(key, properties.getProperty(key));
-            }
-        }
-
-        return propsMap;
     }
 }
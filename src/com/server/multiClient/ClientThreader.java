@@ -3,8 +3,11 @@ package com.server.multiClient;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Properties;
 
+import com.server.WatchRoot;
+
 public class ClientThreader {
 
     public static void main(String[] args) {
@@ -33,11 +36,23 @@ public class ClientThreader {
             ackPort = 9090;
         }
 
+        List<WatchRoot> roots;
+        try {
+            roots = WatchRoot.fromConfig(config);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ". Exiting.");
+            return;
+        }
+
         try {
             // Create two separate socket connections
             // Creating the watcher and listener threads
-            Thread watcherThread = new Thread(new WatcherRunnable(config, 1000));  // Watcher using ackSocket
-            Thread listenerThread = new Thread(new ClientListener(config)); // Listener using ackSocket
+            // The watcher records the hash of every file it sends, the listener verifies the acks against them
+            ChecksumRegistry checksums = new ChecksumRegistry();
+            // Files answered Busy are handed back to the watcher, which sends them again after a backoff
+            WatcherRunnable watcher = new WatcherRunnable(config, roots, checksums, 1000);
+            Thread watcherThread = new Thread(watcher);  // Watcher using ackSocket
+            Thread listenerThread = new Thread(new ClientListener(config, roots, checksums, watcher.getBusyBackoff())); // Listener using ackSocket
             // Starting the threads
             watcherThread.start();
             listenerThread.start();
@@ -1,66 +1,109 @@
 package com.server.multiClient;
 
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.server.BacklogScanner;
+import com.server.BusyBackoff;
+import com.server.Checksums;
+import com.server.DirectoryWatcher;
+import com.server.FileBatcher;
+import com.server.FilePipeline;
+import com.server.SettleWindow;
+import com.server.WatchRoot;
+import com.server.logging.AsyncLogger;
+import com.server.protocol.ServerConnection;
 
 public class WatcherRunnable implements Runnable {
 
     // private final BlockingQueue<String> acknowledgmentQueue;
     private final Properties config;
-    private final String monitoredDirectory;
+    private final List<WatchRoot> roots;
     private final int fileProcessInterval;
-
-    public WatcherRunnable(Properties config, int fileProcessInterval) {
+    // One per server address of the roots. Acks come back on ack.port through ClientListener,
+    // a server only answers on these connections when it turned a message away (Busy)
+    private final Map<String, ServerConnection> serverConnections = new HashMap<>();
+    // Every send with its hash, verified by ClientListener against the one in its ack
+    private final ChecksumRegistry checksums;
+    // Resends files the server answered Busy, through a new connection to their server
+    private final BusyBackoff busyBackoff;
+    // ack.expiry.ms: a send whose ack has not arrived by then is forgotten and the file sent again
+    private final long ackExpiryMillis;
+    private volatile FilePipeline<FileBatcher.PendingFile> pipeline;
+
+    public WatcherRunnable(Properties config, List<WatchRoot> roots, ChecksumRegistry checksums, int fileProcessInterval) {
         this.config = config;
+        this.checksums = checksums;
         // this.acknowledgmentQueue = acknowledgmentQueue;
-        this.monitoredDirectory = config.getProperty("monitored.directory");
+        this.roots = roots;
         this.fileProcessInterval = fileProcessInterval;
+        // Advertised to the servers, so their acks come back to this client's ClientListener
+        int ackPort = Integer.parseInt(config.getProperty("ack.port", "9090"));
+        for (WatchRoot root : roots) {
+            serverConnections.computeIfAbsent(root.serverAddress(), address -> new ServerConnection(config,
+                    root.getServerHost(), root.getServerPort(), ackPort,
+                    ack -> logToFile("Unexpected acknowledgment on server connection: " + ack, config)));
+        }
+        this.busyBackoff = new BusyBackoff(config, this::resend);
+        this.ackExpiryMillis = Long.parseLong(config.getProperty("ack.expiry.ms", "60000"));
+    }
+
+    public BusyBackoff getBusyBackoff() {
+        return busyBackoff;
+    }
+
+    // Posts on the old connection may still be answered Busy, the resend goes through a new one
+    private void resend(Path filePath) {
+        serverConnections.get(WatchRoot.containing(roots, filePath).serverAddress()).reconnectWhenIdle();
+        FilePipeline<FileBatcher.PendingFile> currentPipeline = pipeline;
+        if (currentPipeline == null) {
+            return;
+        }
+        try {
+            currentPipeline.submit(filePath);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
     public void run() {
         logToFile("Started WATCHER THREAD", config);
         try {
-            String filterRegex = config.getProperty("filter.regex", ".*");
-            Path monitoredPath = Paths.get(monitoredDirectory);
-            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                monitoredPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-
-                while (true) {
-                    WatchKey key = watchService.take();
-
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                            Path filePath = (Path) event.context();
-                            Path fullFilePath = monitoredPath.resolve(filePath);
-                            logToFile("New file detected: " + filePath, config);
-                            if (filePath.toString().endsWith(".properties")) {
-                                logToFile("Processing file: " + filePath, config);
-                                propertiesMapMaker(fullFilePath, filterRegex, config, filePath.toString());
-                                // For Testing multi threading
-                                // Thread.sleep(interval);
-                            }
-                        }
-                    }
-                    key.reset();
+            // Files are read and sent by pipeline workers, this thread only watches
+            FilePipeline<FileBatcher.PendingFile> pipeline = new FilePipeline<>(config,
+                    filePath -> propertiesMapMaker(filePath, WatchRoot.containing(roots, filePath), config),
+                    file -> sendMapToServer(file.getPropertiesMap(), file.getFilePath(), config, file.getFileNameForServer()));
+            this.pipeline = pipeline;
+            scheduleAckExpiry();
+            SettleWindow settleWindow = new SettleWindow(config, pipeline);
+            // A posted file is busy until its ack arrives or expires, a scan must not send it again meanwhile
+            BacklogScanner backlogScanner = new BacklogScanner(config, pipeline, settleWindow,
+                    path -> settleWindow.isPending(path) || pipeline.isInFlight(path) || busyBackoff.isWaiting(path)
+                            || checksums.isOutstanding(WatchRoot.containing(roots, path).fileNameFor(path)));
+            new DirectoryWatcher(config, roots, settleWindow.eventKinds(), new DirectoryWatcher.Listener() {
+                @Override
+                public void fileChanged(Path filePath) throws InterruptedException {
+                    settleWindow.fileChanged(filePath);
+                    // For Testing multi threading
+                    // Thread.sleep(interval);
                 }
-            }
+
+                @Override
+                public void rescan(Path directory, boolean recursive, String reason) {
+                    backlogScanner.requestScan(directory, recursive, reason);
+                }
+            }).run();
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
@@ -70,70 +113,88 @@ public class WatcherRunnable implements Runnable {
             String fileNameForServer) {
 
         logToFile("Sending properties map to server for file: " + filePath, config);
-        logToFile("Properties map: " + propertiesMap, config);
-
-        String serverHost = config.getProperty("server.host");
-        int serverPort = Integer.parseInt(config.getProperty("server.port"));
+        debugToFile(() -> "Properties map: " + propertiesMap, config);
 
         propertiesMap.put("##FILENAME##", fileNameForServer);
+        // ack.requires.flush=true asks a server with a write-behind cache to have the file on disk before acking it
+        if (Boolean.parseBoolean(config.getProperty("ack.requires.flush", "false"))) {
+            propertiesMap.put("##FLUSH##", "true");
+        }
 
-        try (Socket socket = new Socket(serverHost, serverPort);
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream())) {
-            logToFile("Connected to the server!", config);
-            oos.writeObject(propertiesMap); // Serialize and send the map
-            oos.flush();
-
-            // Removed acknowledgment handling logic here
-
+        ChecksumRegistry.Send send = checksums.record(fileNameForServer, filePath, Checksums.mapHash(propertiesMap));
+        try {
+            // Frame and send the map over the persistent connection of the file's server
+            CompletableFuture<String> reply = serverConnections.get(WatchRoot.containing(roots, filePath).serverAddress())
+                    .send(propertiesMap);
+            send.awaitReply(reply);
+            reply.thenAccept(answer -> busyAnswered(send, answer));
         } catch (IOException e) {
+            checksums.forget(send); // No ack is coming for it
             e.printStackTrace();
         }
     }
 
-    private void propertiesMapMaker(Path filePath, String filterRegex, Properties config,
-            String fileNameForServer) {
+    // "filename=Busy:<ms>" or "Busy:<ms>" on the connection, the server did not store this send
+    private void busyAnswered(ChecksumRegistry.Send send, String answer) {
+        String status = answer.substring(answer.lastIndexOf('=') + 1).trim();
+        if (!BusyBackoff.isBusy(status)) {
+            logToFile("Unexpected acknowledgment on server connection: " + answer, config);
+            return;
+        }
+        if (checksums.forget(send)) {
+            logToFile("Server busy, sending the file again later: " + send.filePath, config);
+            busyBackoff.retryLater(send.filePath, status);
+        }
+    }
+
+    // Acks the server could not deliver (AckChannel drops a batch after its retries) never arrive
+    private void scheduleAckExpiry() {
+        if (ackExpiryMillis <= 0) {
+            return;
+        }
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ack-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, ackExpiryMillis / 4);
+        expiry.scheduleWithFixedDelay(() -> {
+            for (ChecksumRegistry.Send send : checksums.expire(TimeUnit.MILLISECONDS.toNanos(ackExpiryMillis))) {
+                if (Files.exists(send.filePath) && !busyBackoff.isWaiting(send.filePath)) {
+                    logToFile("No acknowledgment within ack.expiry.ms, sending the file again: " + send.filePath, config);
+                    resend(send.filePath);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
 
-        Map<String, String> propertiesMap = new HashMap<>();
+    // Runs on a pipeline read worker, null if the file could not be read
+    private FileBatcher.PendingFile propertiesMapMaker(Path filePath, WatchRoot root, Properties config) {
+        String fileNameForServer = root.fileNameFor(filePath);
+        logToFile("Processing file: " + fileNameForServer, config);
 
-        // Load the properties file
-        Pattern pattern = Pattern.compile(filterRegex);
-        Properties properties = new Properties();
-        try (FileInputStream fileInputStream = new FileInputStream(filePath.toFile())) {
-            // Load properties from the file
-            properties.load(fileInputStream);
+        // Load the properties file, keeping the keys the root's filter accepts
+        Map<String, String> propertiesMap;
+        try {
+            propertiesMap = root.getFilter().filterFile(filePath);
         } catch (IOException e) {
             System.err.println(filePath + " - Error loading properties file: " + e.getMessage());
             System.err.println("Error loading properties file: " + e.getMessage());
-            return;
-        }
-
-        // Iterate over the properties and filter based on regex
-        for (String key : properties.stringPropertyNames()) {
-            // Match the key with the provided regex pattern
-            logToFile("Checking key: " + key, config);
-            key = key.trim();
-            Matcher matcher = pattern.matcher(key);
-            if (matcher.matches()) {
-                // If it matches, print the key and value (this is just an example)
-                // logToFile(key + "=" + properties.getProperty(key));
-                propertiesMap.put(key, properties.getProperty(key));
-            }
+            return null;
         }
 
-        logToFile("Filtered properties map: " + propertiesMap, config);
+        debugToFile(() -> "Filtered properties map: " + propertiesMap, config);
 
         // This Map along with File Name should be sent to Server
-        sendMapToServer(propertiesMap, filePath, config, fileNameForServer);
+        return new FileBatcher.PendingFile(filePath, fileNameForServer, propertiesMap);
     }
 
     private void logToFile(String message, Properties config) {
-        System.out.println(message);
-        String logFilePath = config.getProperty("log.file.path", "./logs/client_log.txt");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write(message);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
-        }
+        AsyncLogger.forConfig(config).info(message);
+    }
+
+    // Per-key and whole-map lines, only built when log.level=DEBUG
+    private void debugToFile(Supplier<String> message, Properties config) {
+        AsyncLogger.forConfig(config).debug(message);
     }
 }
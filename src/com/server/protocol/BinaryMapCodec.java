@@ -0,0 +1,211 @@
+package com.server.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, length-prefixed encoding of the property map.
+ *
+ * Layout (version 1), all lengths are unsigned varints:
+ *   byte version
+ *   varint fileNameLength + 1 (0 when there is no ##FILENAME##), fileName bytes
+ *   varint entryCount, then per entry: keyLength, key bytes, valueLength, value bytes
+ * Strings are UTF-8. The encoder sizes the payload up front and writes it in one array, the
+ * decoder reads straight out of the frame payload (which the server reuses between frames)
+ * without stream wrappers or class metadata.
+ */
+public class BinaryMapCodec implements MapCodec {
+
+    public static final byte VERSION = 1;
+    private static final String FILENAME_KEY = "##FILENAME##";
+
+    @Override
+    public byte[] encode(Map<String, String> message) throws IOException {
+        String fileName = message.get(FILENAME_KEY);
+        int entryCount = fileName == null ? message.size() : message.size() - 1;
+
+        // First pass: exact payload size so the payload is a single allocation
+        int size = 1 + varintLength(entryCount);
+        size += fileName == null ? 1 : stringLength(fileName, 1);
+        for (Map.Entry<String, String> entry : message.entrySet()) {
+            if (!FILENAME_KEY.equals(entry.getKey())) {
+                size += stringLength(entry.getKey(), 0) + stringLength(entry.getValue(), 0);
+            }
+        }
+
+        byte[] payload = new byte[size];
+        int position = 0;
+        payload[position++] = VERSION;
+        if (fileName == null) {
+            payload[position++] = 0;
+        } else {
+            position = writeVarint(payload, position, utf8Length(fileName) + 1);
+            position = writeUtf8(payload, position, fileName);
+        }
+        position = writeVarint(payload, position, entryCount);
+        for (Map.Entry<String, String> entry : message.entrySet()) {
+            if (!FILENAME_KEY.equals(entry.getKey())) {
+                position = writeString(payload, position, entry.getKey());
+                position = writeString(payload, position, entry.getValue());
+            }
+        }
+        return payload;
+    }
+
+    @Override
+    public Map<String, String> decode(byte[] payload, int offset, int length) throws IOException {
+        Reader reader = new Reader(payload, offset, offset + length);
+        byte version = reader.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary map version " + version);
+        }
+
+        int fileNameLength = reader.readVarint();
+        String fileName = fileNameLength == 0 ? null : reader.readString(fileNameLength - 1);
+        int entryCount = reader.readVarint();
+        // Every entry takes at least its two length bytes, a larger count is not trusted with a table allocation
+        if (entryCount > reader.remaining() / 2) {
+            throw new IOException("Malformed entry count in binary map: " + entryCount);
+        }
+
+        // Sized so the map never rehashes while it is filled
+        Map<String, String> message = new HashMap<>((int) ((entryCount + 1) / 0.75f) + 1);
+        for (int i = 0; i < entryCount; i++) {
+            String key = reader.readString(reader.readVarint());
+            message.put(key, reader.readString(reader.readVarint()));
+        }
+        if (fileName != null) {
+            message.put(FILENAME_KEY, fileName);
+        }
+        if (reader.position != reader.limit) {
+            throw new IOException("Trailing bytes after binary map");
+        }
+        return message;
+    }
+
+    private static int stringLength(String value, int lengthBias) {
+        int utf8Length = utf8Length(value);
+        return varintLength(utf8Length + lengthBias) + utf8Length;
+    }
+
+    private static int writeString(byte[] payload, int position, String value) {
+        position = writeVarint(payload, position, utf8Length(value));
+        return writeUtf8(payload, position, value);
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVarint(byte[] payload, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            payload[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        payload[position++] = (byte) value;
+        return position;
+    }
+
+    // Same byte count String.getBytes(UTF_8) produces, unpaired surrogates become '?'
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static int writeUtf8(byte[] payload, int position, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                payload[position++] = (byte) c;
+            } else if (c < 0x800) {
+                payload[position++] = (byte) (0xC0 | (c >> 6));
+                payload[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                payload[position++] = (byte) (0xF0 | (codePoint >> 18));
+                payload[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                payload[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                payload[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                payload[position++] = '?';
+            } else {
+                payload[position++] = (byte) (0xE0 | (c >> 12));
+                payload[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                payload[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private static class Reader {
+        private final byte[] payload;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] payload, int position, int limit) {
+            this.payload = payload;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return payload[position++];
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Malformed length in binary map");
+        }
+
+        String readString(int length) throws IOException {
+            require(length);
+            String value = new String(payload, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || limit - position < length) {
+                throw new IOException("Truncated binary map");
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.server.protocol;
+
+/**
+ * One unit on a persistent client/server connection.
+ *
+ * Every frame carries the id of the request it belongs to, so acknowledgements can come back
+ * in any order on the same connection and still be matched to the file that was sent.
+ */
+public class Frame {
+
+    // A property map (with ##FILENAME##) sent by the client
+    public static final byte MESSAGE = 1;
+    // "filename=Success|Failure" sent back by the server for a MESSAGE
+    public static final byte ACK = 2;
+    // Feature negotiation right after the preamble: the client offers FrameIO.FEATURE_* bits, the server answers with the accepted ones
+    public static final byte HELLO = 3;
+    // Several property maps in one frame (FrameIO.FEATURE_BATCH), see MapCodec.encodeBatch
+    public static final byte BATCH = 4;
+    // One "filename=Success|Failure" line per file of a BATCH
+    public static final byte BATCH_ACK = 5;
+
+    private final byte type;
+    private final byte flags;
+    private final long requestId;
+    private final byte[] payload;
+    private final int payloadLength;
+
+    public Frame(byte type, long requestId, byte[] payload) {
+        this(type, (byte) 0, requestId, payload, payload.length);
+    }
+
+    // payload may be a reused buffer that is longer than the frame's payload
+    public Frame(byte type, byte flags, long requestId, byte[] payload, int payloadLength) {
+        this.type = type;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.payload = payload;
+        this.payloadLength = payloadLength;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
@@ -0,0 +1,168 @@
+package com.server.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the persistent connection.
+ *
+ * A framed connection starts with a preamble (magic + version) so the server can tell it apart
+ * from a legacy client, whose Java serialization stream always starts with 0xACED. After that
+ * every frame is: int length, byte type, byte flags, long requestId, payload.
+ * The length covers everything after itself.
+ */
+public final class FrameIO {
+
+    // "PROP"
+    public static final int MAGIC = 0x50524F50;
+    public static final byte VERSION = 1;
+    public static final int PREAMBLE_BYTES = 5;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    // Feature bits exchanged in the HELLO frames
+    public static final int FEATURE_BINARY_CODEC = 1;
+    public static final int FEATURE_BATCH = 2;
+    // The server understands ##BASE## / ##HASH## / ##REMOVED## keys and answers a stale base with Resync
+    public static final int FEATURE_DELTA_SYNC = 4;
+    // Large payloads may arrive deflated, see PayloadCompression
+    public static final int FEATURE_COMPRESSION = 8;
+    // A huge file may arrive in chunks tagged with ##STREAM## / ##CHUNK## / ##LAST##
+    public static final int FEATURE_STREAMING = 16;
+    public static final int SUPPORTED_FEATURES = FEATURE_BINARY_CODEC | FEATURE_BATCH | FEATURE_DELTA_SYNC | FEATURE_COMPRESSION
+            | FEATURE_STREAMING;
+
+    private static final int HEADER_BYTES = 1 + 1 + 8;
+    // What a frame takes on the wire besides its payload: the length and the header
+    public static final int FRAME_OVERHEAD_BYTES = 4 + HEADER_BYTES;
+
+    private FrameIO() {
+    }
+
+    public static boolean isPreamble(int firstByte, int secondByte) {
+        return firstByte == ((MAGIC >>> 24) & 0xFF) && secondByte == ((MAGIC >>> 16) & 0xFF);
+    }
+
+    public static void writePreamble(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.flush();
+    }
+
+    public static void readPreamble(DataInputStream in) throws IOException {
+        checkPreamble(in.readInt(), in.readByte());
+    }
+
+    // NIO variant, buffer is in read mode and holds at least PREAMBLE_BYTES
+    public static void readPreamble(ByteBuffer buffer) throws IOException {
+        checkPreamble(buffer.getInt(), buffer.get());
+    }
+
+    private static void checkPreamble(int magic, byte version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a framed connection, magic " + Integer.toHexString(magic));
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+    }
+
+    public static Frame hello(int features) {
+        return new Frame(Frame.HELLO, 0, ByteBuffer.allocate(4).putInt(features).array());
+    }
+
+    // Client HELLO that also tells an ack.mode server the port its ack listener runs on.
+    // A server that predates it only reads the features.
+    public static Frame hello(int features, int ackPort) {
+        return new Frame(Frame.HELLO, 0, ByteBuffer.allocate(8).putInt(features).putInt(ackPort).array());
+    }
+
+    // 0 when the client did not advertise an ack port
+    public static int readAckPort(Frame hello) {
+        if (hello.getPayloadLength() < 8) {
+            return 0;
+        }
+        return ByteBuffer.wrap(hello.getPayload(), 0, hello.getPayloadLength()).getInt(4);
+    }
+
+    public static int readFeatures(Frame hello) throws IOException {
+        if (hello.getType() != Frame.HELLO || hello.getPayloadLength() < 4) {
+            throw new IOException("Expected HELLO frame, got type " + hello.getType());
+        }
+        return ByteBuffer.wrap(hello.getPayload(), 0, hello.getPayloadLength()).getInt();
+    }
+
+    public static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.writeInt(HEADER_BYTES + frame.getPayloadLength());
+        out.writeByte(frame.getType());
+        out.writeByte(frame.getFlags());
+        out.writeLong(frame.getRequestId());
+        out.write(frame.getPayload(), 0, frame.getPayloadLength());
+    }
+
+    public static ByteBuffer encode(Frame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_BYTES + frame.getPayloadLength());
+        buffer.putInt(HEADER_BYTES + frame.getPayloadLength());
+        buffer.put(frame.getType());
+        buffer.put(frame.getFlags());
+        buffer.putLong(frame.getRequestId());
+        buffer.put(frame.getPayload(), 0, frame.getPayloadLength());
+        buffer.flip();
+        return buffer;
+    }
+
+    // Returns null when the other side closed the connection between frames
+    public static Frame read(DataInputStream in, int maxPayloadBytes) throws IOException {
+        return read(in, maxPayloadBytes, null);
+    }
+
+    // Reads the payload into reuse when it is large enough, so a connection that handles its frames
+    // one after another does not allocate a new payload array per frame. Pass the previous frame's
+    // getPayload() as reuse for the next call.
+    public static Frame read(DataInputStream in, int maxPayloadBytes, byte[] reuse) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length, maxPayloadBytes);
+
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        long requestId = in.readLong();
+        int payloadLength = length - HEADER_BYTES;
+        byte[] payload = reuse != null && reuse.length >= payloadLength ? reuse : new byte[payloadLength];
+        in.readFully(payload, 0, payloadLength);
+        return new Frame(type, flags, requestId, payload, payloadLength);
+    }
+
+    // NIO variant: returns null and leaves the buffer untouched until a whole frame is available
+    public static Frame tryRead(ByteBuffer buffer, int maxPayloadBytes) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length, maxPayloadBytes);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+
+        buffer.getInt();
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        long requestId = buffer.getLong();
+        byte[] payload = new byte[length - HEADER_BYTES];
+        buffer.get(payload);
+        return new Frame(type, flags, requestId, payload, payload.length);
+    }
+
+    // maxPayloadBytes limits the payload alone, so a payload of exactly that size still fits
+    private static void checkLength(int length, int maxPayloadBytes) throws IOException {
+        if (length < HEADER_BYTES || length - HEADER_BYTES > maxPayloadBytes) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.server.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the property map (including ##FILENAME##) into a MESSAGE payload and back.
+ *
+ * Which codec a framed connection uses is agreed in the HELLO exchange, connections that never
+ * send a HELLO (and legacy clients) keep using Java serialization.
+ */
+public interface MapCodec {
+
+    MapCodec SERIALIZED = new SerializedMapCodec();
+    MapCodec BINARY = new BinaryMapCodec();
+
+    byte[] encode(Map<String, String> message) throws IOException;
+
+    Map<String, String> decode(byte[] payload, int offset, int length) throws IOException;
+
+    default Map<String, String> decode(byte[] payload) throws IOException {
+        return decode(payload, 0, payload.length);
+    }
+
+    // BATCH payload: int count, then an int length and the encoded map for every file
+    default byte[] encodeBatch(List<Map<String, String>> messages) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(messages.size());
+        int size = 4;
+        for (Map<String, String> message : messages) {
+            byte[] payload = encode(message);
+            encoded.add(payload);
+            size += 4 + payload.length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(size);
+        batch.putInt(encoded.size());
+        for (byte[] payload : encoded) {
+            batch.putInt(payload.length);
+            batch.put(payload);
+        }
+        return batch.array();
+    }
+
+    default List<Map<String, String>> decodeBatch(byte[] payload, int offset, int length) throws IOException {
+        ByteBuffer batch = ByteBuffer.wrap(payload, offset, length);
+        int count = batch.remaining() >= 4 ? batch.getInt() : -1;
+        if (count < 0 || count > batch.remaining() / 4) {
+            throw new IOException("Malformed batch payload");
+        }
+        List<Map<String, String>> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int messageLength = batch.remaining() >= 4 ? batch.getInt() : -1;
+            if (messageLength < 0 || messageLength > batch.remaining()) {
+                throw new IOException("Malformed batch payload");
+            }
+            messages.add(decode(payload, batch.position(), messageLength));
+            batch.position(batch.position() + messageLength);
+        }
+        return messages;
+    }
+
+    static MapCodec forFeatures(int features) {
+        return (features & FrameIO.FEATURE_BINARY_CODEC) != 0 ? BINARY : SERIALIZED;
+    }
+}
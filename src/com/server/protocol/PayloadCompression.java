@@ -0,0 +1,141 @@
+package com.server.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.server.logging.AsyncLogger;
+
+/**
+ * Optional Deflate compression of frame payloads (FrameIO.FEATURE_COMPRESSION).
+ *
+ * Only payloads of at least wire.compress.threshold bytes are compressed, and only when that
+ * actually makes them smaller. A compressed frame has FLAG_DEFLATED set and its payload is the
+ * original length (int) followed by the deflated bytes, so the receiver can refuse anything that
+ * would inflate beyond max.message.bytes before allocating it.
+ *
+ * Sizes and times are logged per frame at DEBUG, with running totals, so it can be checked
+ * whether compression pays off on a given link.
+ */
+public class PayloadCompression {
+
+    public static final byte FLAG_DEFLATED = 1;
+
+    private final Properties config;
+    private final int threshold;
+    private final int level;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    public PayloadCompression(Properties config) {
+        this.config = config;
+        this.threshold = Integer.parseInt(config.getProperty("wire.compress.threshold", "16384"));
+        this.level = Integer.parseInt(config.getProperty("wire.compress.level", String.valueOf(Deflater.BEST_SPEED)));
+    }
+
+    // Whether the client should offer compression at all (wire.compress.threshold=0 turns it off)
+    public boolean enabled() {
+        return threshold > 0;
+    }
+
+    public Frame compress(Frame frame) {
+        int length = frame.getPayloadLength();
+        if (!enabled() || length < threshold) {
+            return frame;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(level);
+        byte[] compressed;
+        int compressedLength;
+        try {
+            deflater.setInput(frame.getPayload(), 0, length);
+            deflater.finish();
+            // Not worth it unless the result is smaller, so the buffer never has to grow
+            compressed = new byte[4 + length];
+            ByteBuffer.wrap(compressed).putInt(length);
+            compressedLength = 4 + deflater.deflate(compressed, 4, length);
+            if (!deflater.finished()) {
+                return frame;
+            }
+        } finally {
+            deflater.end();
+        }
+        if (compressedLength >= length) {
+            return frame;
+        }
+
+        record("Compressed", length, compressedLength, System.nanoTime() - start);
+        return new Frame(frame.getType(), (byte) (frame.getFlags() | FLAG_DEFLATED), frame.getRequestId(),
+                compressed, compressedLength);
+    }
+
+    // Returns the frame with its original payload, frames without FLAG_DEFLATED are returned as they are
+    public Frame inflate(Frame frame, int maxPayloadBytes) throws IOException {
+        if ((frame.getFlags() & FLAG_DEFLATED) == 0) {
+            return frame;
+        }
+        if (frame.getPayloadLength() < 4) {
+            throw new IOException("Truncated compressed payload");
+        }
+        int length = ByteBuffer.wrap(frame.getPayload(), 0, 4).getInt();
+        if (length < 0 || length > maxPayloadBytes) {
+            throw new IOException("Compressed payload inflates to " + length + " bytes, over max.message.bytes");
+        }
+
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        byte[] payload = new byte[length];
+        try {
+            inflater.setInput(frame.getPayload(), 4, frame.getPayloadLength() - 4);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(payload, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed payload does not match its length " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        record("Inflated", length, frame.getPayloadLength(), System.nanoTime() - start);
+        return new Frame(frame.getType(), (byte) (frame.getFlags() & ~FLAG_DEFLATED), frame.getRequestId(), payload, length);
+    }
+
+    public long frames() {
+        return frames.get();
+    }
+
+    // Running totals, e.g. for a line when a connection ends
+    public String summary() {
+        long original = originalBytes.get();
+        return frames.get() + " frames, " + original + " -> " + compressedBytes.get() + " bytes ("
+                + ratio(original, compressedBytes.get()) + "%) in " + nanos.get() / 1_000_000 + " ms";
+    }
+
+    private void record(String action, int original, int compressed, long elapsedNanos) {
+        frames.incrementAndGet();
+        originalBytes.addAndGet(original);
+        compressedBytes.addAndGet(compressed);
+        nanos.addAndGet(elapsedNanos);
+        AsyncLogger.forConfig(config).debug(() -> action + " payload " + original + " -> " + compressed + " bytes ("
+                + ratio(original, compressed) + "%) in " + elapsedNanos / 1000 + " us, total " + summary());
+    }
+
+    private static long ratio(long original, long compressed) {
+        return original == 0 ? 100 : compressed * 100 / original;
+    }
+}
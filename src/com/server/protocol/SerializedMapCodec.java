@@ -0,0 +1,35 @@
+package com.server.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java serialization of a HashMap, the same payload the legacy one-socket-per-file protocol sends.
+ */
+public class SerializedMapCodec implements MapCodec {
+
+    @Override
+    public byte[] encode(Map<String, String> message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(message instanceof HashMap ? message : new HashMap<>(message));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Map<String, String> decode(byte[] payload, int offset, int length) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            @SuppressWarnings("unchecked")
+            Map<String, String> message = (Map<String, String>) ois.readObject();
+            return message;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unexpected payload: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.server.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * One long-lived, framed connection from a client to the server.
+ *
+ * Every file is sent as a MESSAGE frame tagged with its own request id, and the server's ACK
+ * frames are matched back to the waiting send by that id. The connection is opened on first use
+ * and reopened on the next send after a failure; any sends still waiting when the connection
+ * drops are failed so the caller can move the file to the failed directory.
+ *
+ * Right after connecting the client offers its features in a HELLO frame (the binary map codec
+ * unless wire.codec=serialized, batches, delta sync and compression of payloads of at least
+ * wire.compress.threshold bytes). A server that does not answer within
+ * server.handshake.timeout is treated as supporting none of them. An ack.mode client also
+ * advertises the port of its ack listener there, so the server knows where to send its acks.
+ *
+ * After a Busy answer the caller asks for reconnectWhenIdle(): the next send that finds nothing
+ * else waiting opens a new connection, so an overloaded server gets to admit the client again.
+ */
+public class ServerConnection implements Closeable {
+
+    private final String host;
+    private final int port;
+    private final int offeredFeatures;
+    private final int handshakeTimeout;
+    // 0 unless acks are expected on the client's ack listener instead of this connection
+    private final int ackPort;
+    private final PayloadCompression compression;
+    // Acks whose request is no longer waiting (e.g. it already timed out)
+    private final Consumer<String> lateAckHandler;
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private Socket socket;
+    private DataOutputStream out;
+    private MapCodec codec = MapCodec.SERIALIZED;
+    private int negotiatedFeatures;
+    private boolean reconnectWhenIdle;
+
+    public ServerConnection(Properties config, Consumer<String> lateAckHandler) {
+        this(config, config.getProperty("server.host"), Integer.parseInt(config.getProperty("server.port", "8080")), lateAckHandler);
+    }
+
+    // A connection to another server than server.host / server.port (per WatchRoot), with the rest of config
+    public ServerConnection(Properties config, String host, int port, Consumer<String> lateAckHandler) {
+        this(config, host, port, 0, lateAckHandler);
+    }
+
+    // ack.mode: the server sends the acks of everything sent here to ackPort on this client's host
+    public ServerConnection(Properties config, String host, int port, int ackPort, Consumer<String> lateAckHandler) {
+        this.host = host;
+        this.port = port;
+        this.compression = new PayloadCompression(config);
+        this.offeredFeatures = FrameIO.FEATURE_BATCH | FrameIO.FEATURE_DELTA_SYNC | FrameIO.FEATURE_STREAMING
+                | ("serialized".equalsIgnoreCase(config.getProperty("wire.codec", "binary")) ? 0 : FrameIO.FEATURE_BINARY_CODEC)
+                | (compression.enabled() ? FrameIO.FEATURE_COMPRESSION : 0);
+        this.handshakeTimeout = Integer.parseInt(config.getProperty("server.handshake.timeout", "5000"));
+        this.lateAckHandler = lateAckHandler;
+        this.ackPort = ackPort;
+    }
+
+    // Sends the map and returns a future completed with the server's acknowledgment line.
+    // Cancelling or completing the future stops waiting for that request.
+    public CompletableFuture<String> send(Map<String, String> message) throws IOException {
+        return sendFrame(Frame.MESSAGE, List.of(message));
+    }
+
+    // Sends all maps in one BATCH frame, the future completes with one "filename=status" line per file.
+    // Against a server without batch support every map goes out as its own MESSAGE instead.
+    public CompletableFuture<String> sendBatch(List<Map<String, String>> messages) throws IOException {
+        if (supports(FrameIO.FEATURE_BATCH)) {
+            return sendFrame(Frame.BATCH, messages);
+        }
+
+        List<CompletableFuture<String>> acks = new ArrayList<>(messages.size());
+        for (Map<String, String> message : messages) {
+            acks.add(send(message));
+        }
+        CompletableFuture<String> batchAck = CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    StringBuilder lines = new StringBuilder();
+                    acks.forEach(ack -> lines.append(ack.join()).append("\n"));
+                    return lines.toString();
+                });
+        // Giving up on the batch gives up on every single message, so their late acks are reported
+        batchAck.whenComplete((result, error) -> acks.forEach(ack -> ack.cancel(false)));
+        return batchAck;
+    }
+
+    private CompletableFuture<String> sendFrame(byte type, List<Map<String, String>> messages) throws IOException {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<String> ack = new CompletableFuture<>();
+        ack.whenComplete((result, error) -> pending.remove(requestId));
+        synchronized (this) {
+            reconnectIfIdle();
+            pending.put(requestId, ack);
+            try {
+                writeFrame(type, requestId, messages);
+            } catch (IOException e) {
+                ack.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return ack;
+    }
+
+    // The server answered Busy: it may have admitted this connection only to turn messages away
+    public synchronized void reconnectWhenIdle() {
+        reconnectWhenIdle = true;
+    }
+
+    // Done before a send, never on the ack reader thread which must keep reading while a write blocks
+    private synchronized void reconnectIfIdle() {
+        if (reconnectWhenIdle && pending.isEmpty()) {
+            reconnectWhenIdle = false;
+            disconnect(socket, new IOException("Reconnecting"));
+        }
+    }
+
+    // Whether the server accepted the feature, connects first if needed
+    public synchronized boolean supports(int feature) throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        return (negotiatedFeatures & feature) != 0;
+    }
+
+    // Sends the map without waiting for an ack on this connection (ack.mode delivers it on ack.port)
+    public synchronized void post(Map<String, String> message) throws IOException {
+        reconnectIfIdle();
+        writeFrame(Frame.MESSAGE, nextRequestId.incrementAndGet(), List.of(message));
+    }
+
+    private synchronized void writeFrame(byte type, long requestId, List<Map<String, String>> messages) throws IOException {
+        try {
+            if (socket == null) {
+                connect();
+            }
+            byte[] payload = type == Frame.BATCH ? codec.encodeBatch(messages) : codec.encode(messages.get(0));
+            Frame frame = new Frame(type, requestId, payload);
+            if ((negotiatedFeatures & FrameIO.FEATURE_COMPRESSION) != 0) {
+                frame = compression.compress(frame);
+            }
+            FrameIO.write(out, frame);
+            out.flush();
+        } catch (IOException e) {
+            disconnect(socket, e);
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(host, port);
+        newSocket.setTcpNoDelay(true);
+        DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+        DataInputStream newIn = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+        try {
+            FrameIO.writePreamble(newOut);
+            this.negotiatedFeatures = negotiate(newSocket, newIn, newOut);
+            this.codec = MapCodec.forFeatures(negotiatedFeatures);
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        this.socket = newSocket;
+        this.out = newOut;
+
+        Thread reader = new Thread(() -> readAcks(newSocket, newIn), "server-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private int negotiate(Socket newSocket, DataInputStream newIn, DataOutputStream newOut) throws IOException {
+        if (offeredFeatures == 0 && ackPort == 0) {
+            return 0;
+        }
+        FrameIO.write(newOut, ackPort > 0 ? FrameIO.hello(offeredFeatures, ackPort) : FrameIO.hello(offeredFeatures));
+        newOut.flush();
+
+        newSocket.setSoTimeout(handshakeTimeout);
+        try {
+            Frame reply = FrameIO.read(newIn, FrameIO.MAX_FRAME_BYTES);
+            if (reply == null) {
+                throw new IOException("Server closed the connection during handshake");
+            }
+            return FrameIO.readFeatures(reply) & offeredFeatures;
+        } catch (SocketTimeoutException e) {
+            return 0; // Server predates feature negotiation
+        } finally {
+            newSocket.setSoTimeout(0);
+        }
+    }
+
+    private void readAcks(Socket readerSocket, DataInputStream in) {
+        try (in) {
+            Frame frame;
+            while ((frame = FrameIO.read(in, FrameIO.MAX_FRAME_BYTES)) != null) {
+                if (frame.getType() != Frame.ACK && frame.getType() != Frame.BATCH_ACK) {
+                    continue;
+                }
+                String acknowledgment = new String(frame.getPayload(), 0, frame.getPayloadLength(), StandardCharsets.UTF_8);
+                CompletableFuture<String> ack = pending.get(frame.getRequestId());
+                if (ack == null || !ack.complete(acknowledgment)) {
+                    lateAckHandler.accept(acknowledgment);
+                }
+            }
+            disconnect(readerSocket, new IOException("Server closed the connection"));
+        } catch (IOException e) {
+            disconnect(readerSocket, e);
+        }
+    }
+
+    private synchronized void disconnect(Socket failedSocket, IOException cause) {
+        if (failedSocket == null || failedSocket != socket) {
+            return; // Already replaced by a newer connection
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        socket = null;
+        out = null;
+        for (CompletableFuture<String> ack : pending.values()) {
+            ack.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect(socket, new IOException("Connection closed"));
+    }
+}
@@ -0,0 +1,221 @@
+package com.server.store;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.server.logging.AsyncLogger;
+import com.server.metrics.ServerMetrics;
+
+/**
+ * How stored files reach the disk, set with store.durability.
+ *
+ * Files are always replaced by writing a temporary file next to them and moving it over the old
+ * one, so a crash leaves either the old or the new version and never a partly written file.
+ *   none      - nothing is forced, the OS writes the data out when it likes (fastest)
+ *   per-write - every write forces the file and its directory before the request is acked
+ *   group     - writes wait for a background fsync that forces all files written within
+ *               store.durability.group.interval.ms together, trading a little latency for
+ *               far fewer fsyncs when many files are written at once. The round forces the
+ *               temporary files, moves them into place and then forces their directories, so
+ *               a replaced file is acked after one round
+ * An unknown mode is logged as a warning and treated as none.
+ */
+final class Durability {
+
+    private enum Mode { NONE, PER_WRITE, GROUP }
+
+    interface Content {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    // A temporary file the next group round forces and moves over its target
+    private static final class Replacement {
+        final Path temporary;
+        final Path target;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Replacement(Path temporary, Path target) {
+            this.temporary = temporary;
+            this.target = target;
+        }
+    }
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final AtomicLong TEMPORARY_COUNTER = new AtomicLong();
+
+    private final Mode mode;
+    private final long groupIntervalMillis;
+    private final PropertyStore store;
+    private ScheduledExecutorService syncer;
+    // Paths waiting for the next group fsync, guarded by this
+    private Map<Path, CompletableFuture<Void>> pendingSyncs = new HashMap<>();
+    private List<Replacement> pendingReplacements = new ArrayList<>();
+
+    Durability(Properties config, PropertyStore store) {
+        this.mode = mode(config);
+        this.groupIntervalMillis = Long.parseLong(config.getProperty("store.durability.group.interval.ms", "10"));
+        this.store = store;
+        if (mode == Mode.GROUP) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "store-group-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static Mode mode(Properties config) {
+        String setting = config.getProperty("store.durability", "none");
+        try {
+            return Mode.valueOf(setting.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            AsyncLogger.forConfig(config).warn("Unknown store.durability '" + setting + "', using none");
+            return Mode.NONE;
+        }
+    }
+
+    // Replaces target with the stored properties through a temporary file and an atomic move
+    void replace(Path target, Properties properties, String comments) throws IOException {
+        replace(target, writer -> properties.store(writer, comments));
+    }
+
+    // Same for content that is written piece by piece (streamed transfers) instead of held in memory
+    void replace(Path target, Content content) throws IOException {
+        long start = System.nanoTime();
+        Path temporary = target.resolveSibling(target.getFileName() + "." + TEMPORARY_COUNTER.incrementAndGet() + TEMPORARY_SUFFIX);
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                content.writeTo(writer);
+            }
+            if (mode == Mode.GROUP) {
+                // File, move and directory in one round instead of a round for each fsync
+                join(requestGroupReplace(temporary, target));
+            } else {
+                sync(temporary);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                sync(target.getParent()); // Makes the rename itself durable
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        ServerMetrics.record(ServerMetrics.Stage.WRITE, start);
+    }
+
+    // Called after appending to a file that is not replaced (journals)
+    void appended(Path path) throws IOException {
+        sync(path);
+    }
+
+    private void sync(Path path) throws IOException {
+        if (mode == Mode.PER_WRITE) {
+            long start = System.nanoTime();
+            force(path);
+            store.debugToFile(() -> "Synced " + path + " in " + (System.nanoTime() - start) / 1000 + " us");
+        } else if (mode == Mode.GROUP) {
+            join(requestGroupSync(path));
+        }
+    }
+
+    private static void join(CompletableFuture<Void> synced) throws IOException {
+        try {
+            synced.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private synchronized CompletableFuture<Void> requestGroupSync(Path path) {
+        scheduleRoundIfIdle();
+        return pendingSyncs.computeIfAbsent(path, key -> new CompletableFuture<>());
+    }
+
+    private synchronized CompletableFuture<Void> requestGroupReplace(Path temporary, Path target) {
+        scheduleRoundIfIdle();
+        Replacement replacement = new Replacement(temporary, target);
+        pendingReplacements.add(replacement);
+        return replacement.done;
+    }
+
+    // Called holding this
+    private void scheduleRoundIfIdle() {
+        if (pendingSyncs.isEmpty() && pendingReplacements.isEmpty()) {
+            syncer.schedule(this::groupSync, groupIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void groupSync() {
+        Map<Path, CompletableFuture<Void>> batch;
+        List<Replacement> replacements;
+        synchronized (this) {
+            batch = pendingSyncs;
+            replacements = pendingReplacements;
+            pendingSyncs = new HashMap<>();
+            pendingReplacements = new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        for (Map.Entry<Path, CompletableFuture<Void>> pending : batch.entrySet()) {
+            try {
+                force(pending.getKey());
+                pending.getValue().complete(null);
+            } catch (IOException e) {
+                pending.getValue().completeExceptionally(e);
+            }
+        }
+        // Data first, then the renames, then every directory a rename touched once
+        List<Replacement> moved = new ArrayList<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Replacement replacement : replacements) {
+            try {
+                force(replacement.temporary);
+                Files.move(replacement.temporary, replacement.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                moved.add(replacement);
+                directories.add(replacement.target.getParent());
+            } catch (IOException e) {
+                replacement.done.completeExceptionally(e);
+            }
+        }
+        for (Path directory : directories) {
+            try {
+                force(directory);
+            } catch (IOException e) {
+                // force() already ignores directories it cannot open
+            }
+        }
+        moved.forEach(replacement -> replacement.done.complete(null));
+        int paths = batch.size() + replacements.size() + directories.size();
+        store.debugToFile(() -> "Group fsync of " + paths + " paths in " + (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    private static void force(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (FileChannel directory = FileChannel.open(path, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // Not every platform can open or force a directory (Windows), the file itself is synced
+            }
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+    }
+}
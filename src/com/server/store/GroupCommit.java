@@ -0,0 +1,226 @@
+package com.server.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces concurrent updates to the same stored file into one write.
+ *
+ * Every update is queued under its (sanitized) file name. The first request for a file that is not
+ * being written becomes the leader: it takes everything queued for the file, merges it in arrival
+ * order and writes the result once, then acknowledges all requests of that round. Updates that
+ * arrive meanwhile queue up for the next round, which is led by the first of them. So a hot file
+ * is written once per round instead of once per request.
+ *
+ * The per-file queues are guarded by a fixed table of store.lock.stripes lock objects, picked by
+ * the hash of the file name, so requests for different files rarely wait on each other.
+ *
+ * An exclusive action (the merge of a streamed transfer) is queued like an update but always
+ * runs in a round of its own, in its place in the queue.
+ *
+ * The leader also checks the base version of every delta (delta sync) against the version the
+ * file is at and records the version the round leaves it at, so both happen in the same critical
+ * section as the write. A delta on a different base is left out of the round and rejected.
+ */
+class GroupCommit {
+
+    interface Writer {
+        // replace: merged is the complete new file, otherwise merged is put and removedKeys removed from the stored file
+        void write(String propFileName, Properties merged, Set<String> removedKeys, boolean replace,
+                boolean flushBeforeReturn) throws IOException;
+    }
+
+    interface Action {
+        void run() throws IOException;
+    }
+
+    private static final class Update {
+        final Properties properties;
+        final Set<String> removedKeys;
+        // Set for deltas, which always apply on top of the stored file, even with append.to.file=false
+        final String baseHash;
+        // The version the file is at after this update (null when unknown)
+        final String contentHash;
+        final boolean flushBeforeReturn;
+        final Action action;
+        // Set by the leader before done completes: a delta whose base did not match
+        boolean rejected;
+        // Completed with true when this request has to lead the next round
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Update(Properties properties, Set<String> removedKeys, String baseHash, String contentHash,
+                boolean flushBeforeReturn, Action action) {
+            this.properties = properties;
+            this.removedKeys = removedKeys;
+            this.baseHash = baseHash;
+            this.contentHash = contentHash;
+            this.flushBeforeReturn = flushBeforeReturn;
+            this.action = action;
+        }
+    }
+
+    private static final class Queue {
+        final ArrayDeque<Update> pending = new ArrayDeque<>();
+        boolean writing;
+    }
+
+    private final Object[] stripes;
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    // ##HASH## of the last update written per file, only changed by the leader of the file's round.
+    // Only kept in memory, so after a restart the first delta for every file is answered with a resync.
+    private final Map<String, String> syncedHashes = new ConcurrentHashMap<>();
+    private final boolean appendToFile;
+    private final Writer writer;
+    private final PropertyStore store;
+
+    GroupCommit(int stripeCount, boolean appendToFile, Writer writer, PropertyStore store) {
+        this.stripes = new Object[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        this.appendToFile = appendToFile;
+        this.writer = writer;
+        this.store = store;
+    }
+
+    // Returns once the update is written (by this thread or by the leader of its round), false when it
+    // is a delta (baseHash set) and the file was not at that version so nothing was written
+    boolean submit(String propFileName, Properties messageProps, Set<String> removedKeys, String baseHash,
+            String contentHash, boolean flushBeforeReturn) throws IOException {
+        Update update = new Update(messageProps, removedKeys, baseHash, contentHash, flushBeforeReturn, null);
+        enqueue(propFileName, update);
+        return !update.rejected;
+    }
+
+    // Runs action ordered with the updates of the file, returns once it ran. The file is at an
+    // unknown version afterwards.
+    void exclusive(String propFileName, Action action) throws IOException {
+        enqueue(propFileName, new Update(null, Set.of(), null, null, false, action));
+    }
+
+    private void enqueue(String propFileName, Update update) throws IOException {
+        boolean leader;
+        synchronized (stripe(propFileName)) {
+            Queue queue = queues.computeIfAbsent(propFileName, name -> new Queue());
+            queue.pending.add(update);
+            leader = !queue.writing;
+            queue.writing = true;
+        }
+
+        try {
+            // join() and not get(): a request handed the lead must not walk away on an interrupt
+            if (leader || update.done.join()) {
+                // A request handed the lead already has its future completed, the outcome of the round it
+                // leads (which always contains its own update) is returned instead
+                IOException failure = writeRound(propFileName);
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Returns the failure of the round, null if it was written
+    private IOException writeRound(String propFileName) {
+        List<Update> round;
+        synchronized (stripe(propFileName)) {
+            Queue queue = queues.get(propFileName);
+            // Either the leading run of plain updates or a single action
+            round = new ArrayList<>();
+            round.add(queue.pending.poll());
+            while (round.get(0).action == null && !queue.pending.isEmpty() && queue.pending.peek().action == null) {
+                round.add(queue.pending.poll());
+            }
+        }
+
+        IOException failure = null;
+        try {
+            if (round.get(0).action != null) {
+                syncedHashes.remove(propFileName);
+                round.get(0).action.run();
+            } else {
+                writeMerged(propFileName, round);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e); // The waiting requests still have to be released
+        }
+
+        synchronized (stripe(propFileName)) {
+            Queue queue = queues.get(propFileName);
+            if (queue.pending.isEmpty()) {
+                queue.writing = false;
+                queues.remove(propFileName);
+            } else {
+                queue.pending.peek().done.complete(true);
+            }
+        }
+        for (Update update : round) {
+            if (failure == null) {
+                update.done.complete(false);
+            } else {
+                update.done.completeExceptionally(failure);
+            }
+        }
+        return failure;
+    }
+
+    private void writeMerged(String propFileName, List<Update> round) throws IOException {
+        Properties merged = new Properties();
+        Set<String> removedKeys = new HashSet<>();
+        boolean replace = false;
+        boolean flushBeforeReturn = false;
+        // The version the file is at, advanced by every update the round applies
+        String version = syncedHashes.get(propFileName);
+        int applied = 0;
+        for (Update update : round) {
+            if (update.baseHash != null && !update.baseHash.equals(version)) {
+                store.logToFile("Delta base does not match the stored version of: " + propFileName);
+                update.rejected = true;
+                continue;
+            }
+            if (!appendToFile && update.baseHash == null) {
+                // Every full update replaces the file, so the last one wins
+                merged.clear();
+                removedKeys.clear();
+                replace = true;
+            }
+            merged.putAll(update.properties);
+            removedKeys.removeAll(update.properties.keySet());
+            // Only deltas remove keys, in append mode too, so the file matches the version they name
+            update.removedKeys.forEach(merged::remove);
+            removedKeys.addAll(update.removedKeys);
+            flushBeforeReturn |= update.flushBeforeReturn;
+            version = update.contentHash;
+            applied++;
+        }
+        if (applied == 0) {
+            return; // Only rejected deltas, the file stays as it is
+        }
+        if (applied > 1) {
+            store.logToFile("Group commit of " + applied + " updates to: " + propFileName);
+        }
+        // Unknown until the write succeeded, a failed write may have left either version
+        syncedHashes.remove(propFileName);
+        writer.write(propFileName, merged, removedKeys, replace, flushBeforeReturn);
+        if (version != null) {
+            syncedHashes.put(propFileName, version);
+        }
+    }
+
+    private Object stripe(String propFileName) {
+        return stripes[Math.floorMod(propFileName.hashCode(), stripes.length)];
+    }
+}
@@ -0,0 +1,65 @@
+package com.server.store;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Properties;
+
+/**
+ * Reads a .properties file one entry at a time instead of loading it whole.
+ *
+ * Every call returns the raw text of one logical line, i.e. a key/value entry together with its
+ * continuation lines, while comments and blank lines are skipped. The text is left exactly as it
+ * is in the file, so it can be copied as it is or handed to Properties.load, which keeps the
+ * parsing rules (escapes, separators, continuations) identical to loading the whole file.
+ */
+public class PropertiesLineReader {
+
+    private final BufferedReader reader;
+
+    public PropertiesLineReader(BufferedReader reader) {
+        this.reader = reader;
+    }
+
+    // null at the end of the file
+    public String nextEntry() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int start = 0;
+            while (start < line.length() && isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            if (start == line.length() || line.charAt(start) == '#' || line.charAt(start) == '!') {
+                continue;
+            }
+
+            StringBuilder entry = new StringBuilder(line);
+            String current = line;
+            while (continues(current) && (current = reader.readLine()) != null) {
+                entry.append('\n').append(current);
+            }
+            return entry.toString();
+        }
+        return null;
+    }
+
+    // The key of an entry returned by nextEntry, unescaped
+    public static String keyOf(String entry) throws IOException {
+        Properties single = new Properties();
+        single.load(new StringReader(entry));
+        return single.isEmpty() ? null : (String) single.keys().nextElement();
+    }
+
+    // An odd number of trailing backslashes continues the entry on the next line
+    private static boolean continues(String line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+}
@@ -0,0 +1,249 @@
+package com.server.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.server.metrics.ServerMetrics;
+
+/**
+ * Append-only storage engine of PropertyStore (store.engine=journal).
+ *
+ * A merge only appends the received properties to journal/&lt;file&gt;.journal instead of rewriting
+ * the whole stored file, so its cost depends on the size of the update and not of the file.
+ * Every append is one record of escaped key=value lines (and removed keys) closed by a commit line; a record
+ * without its commit line (a write cut short by a crash) is ignored when the journal is read.
+ *
+ * The .properties file in store.directory is the snapshot. Once a journal holds
+ * store.journal.compact.bytes, a background thread replays it over the snapshot, replaces the
+ * snapshot and empties the journal. The current content of a file is always snapshot + journal.
+ */
+class PropertyJournal {
+
+    static final String JOURNAL_DIRECTORY = "journal";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String COMMIT_LINE = "\n#commit\n";
+    private static final String REMOVE_PREFIX = "#remove ";
+
+    private final PropertyStore store;
+    private final Durability durability;
+    private final Path journalDirectory;
+    private final long compactBytes;
+    private final ExecutorService compactor;
+    // Files already queued for compaction
+    private final Set<Path> compactionQueued = ConcurrentHashMap.newKeySet();
+
+    PropertyJournal(PropertyStore store, Durability durability, Path storeDirectory, long compactBytes) {
+        this.store = store;
+        this.durability = durability;
+        this.journalDirectory = storeDirectory.resolve(JOURNAL_DIRECTORY);
+        this.compactBytes = compactBytes;
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "store-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void append(Path snapshotPath, String propFileName, Properties messageProps, Set<String> removedKeys)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encodeRecord(messageProps, removedKeys));
+        Path journalPath = journalPath(propFileName);
+        long journalSize;
+        long writeStart;
+        try (FileChannel journal = openJournal(journalPath)) {
+            FileLock lock = PropertyStore.acquireFileLock(journal);
+            writeStart = System.nanoTime();
+            long position = committedLength(journal);
+            while (record.hasRemaining()) {
+                position += journal.write(record, position);
+            }
+            journalSize = position;
+            lock.release();
+        }
+        durability.appended(journalPath);
+        ServerMetrics.record(ServerMetrics.Stage.WRITE, writeStart);
+        store.logToFile("Appended " + messageProps.size() + " properties to journal: " + journalPath);
+
+        if (journalSize >= compactBytes && compactionQueued.add(journalPath)) {
+            compactor.execute(() -> compactQuietly(snapshotPath, propFileName, journalPath));
+        }
+    }
+
+    // append.to.file=false: the new properties become the snapshot and whatever was journaled is dropped
+    void replace(Path snapshotPath, String propFileName, Properties messageProps) throws IOException {
+        Path journalPath = journalPath(propFileName);
+        try (FileChannel journal = openJournal(journalPath)) {
+            FileLock lock = PropertyStore.acquireFileLock(journal);
+            writeSnapshot(snapshotPath, propFileName, messageProps, "New Properties");
+            journal.truncate(0);
+            lock.release();
+        }
+    }
+
+    // A streamed transfer: its staged lines (already escaped) become one record, copied without loading them
+    void appendStaged(Path snapshotPath, String propFileName, Path staged) throws IOException {
+        Path journalPath = journalPath(propFileName);
+        long journalSize;
+        long writeStart;
+        try (FileChannel journal = openJournal(journalPath);
+                FileChannel stagedLines = FileChannel.open(staged, StandardOpenOption.READ)) {
+            FileLock lock = PropertyStore.acquireFileLock(journal);
+            writeStart = System.nanoTime();
+            long position = committedLength(journal);
+            long stagedSize = stagedLines.size();
+            for (long copied = 0; copied < stagedSize;) {
+                copied += stagedLines.transferTo(copied, stagedSize - copied, journal.position(position + copied));
+            }
+            position += stagedSize;
+            ByteBuffer commit = ByteBuffer.wrap(COMMIT_LINE.substring(1).getBytes(StandardCharsets.ISO_8859_1));
+            while (commit.hasRemaining()) {
+                position += journal.write(commit, position);
+            }
+            journalSize = position;
+            lock.release();
+        }
+        durability.appended(journalPath);
+        ServerMetrics.record(ServerMetrics.Stage.WRITE, writeStart);
+        store.logToFile("Appended streamed transfer to journal: " + journalPath);
+
+        if (journalSize >= compactBytes && compactionQueued.add(journalPath)) {
+            compactor.execute(() -> compactQuietly(snapshotPath, propFileName, journalPath));
+        }
+    }
+
+    // append.to.file=false for a streamed transfer: the staged lines become the snapshot
+    void replaceStaged(Path snapshotPath, String propFileName, Path staged) throws IOException {
+        Path journalPath = journalPath(propFileName);
+        try (FileChannel journal = openJournal(journalPath)) {
+            FileLock lock = PropertyStore.acquireFileLock(journal);
+            store.backupIfConfigured(snapshotPath, propFileName);
+            durability.replace(snapshotPath, writer -> {
+                PropertyStore.writeHeader(writer, "New Properties");
+                PropertyStore.copyStaged(staged, writer);
+            });
+            journal.truncate(0);
+            lock.release();
+        }
+    }
+
+    private void compactQuietly(Path snapshotPath, String propFileName, Path journalPath) {
+        compactionQueued.remove(journalPath);
+        try {
+            compact(snapshotPath, propFileName, journalPath);
+        } catch (IOException e) {
+            store.logToFile("Error compacting journal " + journalPath + ": " + e.getMessage());
+        }
+    }
+
+    private void compact(Path snapshotPath, String propFileName, Path journalPath) throws IOException {
+        try (FileChannel journal = openJournal(journalPath)) {
+            FileLock lock = PropertyStore.acquireFileLock(journal);
+            long journalSize = journal.size();
+            Properties merged = replay(snapshotPath, journal);
+            writeSnapshot(snapshotPath, propFileName, merged, "Appended properties");
+            journal.truncate(0);
+            lock.release();
+            store.logToFile("Compacted " + journalSize + " journal bytes into: " + snapshotPath);
+        }
+    }
+
+    // Snapshot plus every committed journal record, called with the journal locked
+    private Properties replay(Path snapshotPath, FileChannel journal) throws IOException {
+        Properties properties = store.loadProperties(snapshotPath);
+        String committed = readJournal(journal, 0, committedLength(journal));
+
+        // Puts are loaded in bulk, up to each removal so a key put again after its removal survives
+        StringBuilder puts = new StringBuilder();
+        for (String line : committed.split("\n")) {
+            if (line.startsWith(REMOVE_PREFIX)) {
+                properties.load(new StringReader(puts.toString()));
+                puts.setLength(0);
+                Properties removed = new Properties();
+                removed.load(new StringReader(line.substring(REMOVE_PREFIX.length())));
+                properties.keySet().removeAll(removed.keySet());
+            } else {
+                puts.append(line).append('\n');
+            }
+        }
+        properties.load(new StringReader(puts.toString()));
+        return properties;
+    }
+
+    // Length of the journal up to the end of its last commit line. Normally that is the whole journal
+    // and only its last bytes are read; after a crash in the middle of an append the unfinished record
+    // is cut off here.
+    private static long committedLength(FileChannel journal) throws IOException {
+        long size = journal.size();
+        int tailLength = (int) Math.min(size, COMMIT_LINE.length());
+        String tail = (tailLength < COMMIT_LINE.length() ? "\n" : "") + readJournal(journal, size - tailLength, tailLength);
+        if (size == 0 || tail.endsWith(COMMIT_LINE)) {
+            return size;
+        }
+        String text = "\n" + readJournal(journal, 0, size);
+        long committed = Math.max(0, text.lastIndexOf(COMMIT_LINE) + COMMIT_LINE.length() - 1);
+        journal.truncate(committed);
+        return committed;
+    }
+
+    private static String readJournal(FileChannel journal, long position, long length) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) length);
+        while (content.hasRemaining() && journal.read(content, position + content.position()) > 0) {
+            // read until the whole range is in memory
+        }
+        return new String(content.array(), 0, content.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    private void writeSnapshot(Path snapshotPath, String propFileName, Properties properties, String comments)
+            throws IOException {
+        store.backupIfConfigured(snapshotPath, propFileName);
+        durability.replace(snapshotPath, properties, comments);
+    }
+
+    // Properties.store escapes keys and values (non ASCII as unicode escapes, a leading '#' too), only its date comment is dropped
+    // Removed keys follow as "#remove key=" lines, which a plain Properties.load skips as comments
+    private static byte[] encodeRecord(Properties messageProps, Set<String> removedKeys) throws IOException {
+        StringBuilder record = new StringBuilder();
+        appendEscaped(record, messageProps, "");
+        if (!removedKeys.isEmpty()) {
+            Properties removed = new Properties();
+            removedKeys.forEach(key -> removed.setProperty(key, ""));
+            appendEscaped(record, removed, REMOVE_PREFIX);
+        }
+        record.append(COMMIT_LINE, 1, COMMIT_LINE.length());
+        return record.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static void appendEscaped(StringBuilder record, Properties properties, String linePrefix) throws IOException {
+        ByteArrayOutputStream escaped = new ByteArrayOutputStream();
+        properties.store(escaped, null);
+        for (String line : escaped.toString(StandardCharsets.ISO_8859_1).split("\\R")) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                record.append(linePrefix).append(line).append('\n');
+            }
+        }
+    }
+
+    private Path journalPath(String propFileName) throws IOException {
+        if (!Files.exists(journalDirectory)) {
+            Files.createDirectories(journalDirectory);
+        }
+        return journalDirectory.resolve(propFileName + JOURNAL_SUFFIX);
+    }
+
+    private static FileChannel openJournal(Path journalPath) throws IOException {
+        return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
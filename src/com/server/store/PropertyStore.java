@@ -0,0 +1,395 @@
+package com.server.store;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.server.logging.AsyncLogger;
+import com.server.metrics.ServerMetrics;
+
+/**
+ * Writes received properties into the files of one store.directory.
+ *
+ * With append.to.file=true (the default) the received properties are merged into the stored
+ * file, otherwise they replace it. backup.file=true moves the previous version of a file to the
+ * backup folder before it is written. Every write holds a FileLock on the stored file, and
+ * concurrent updates to the same file are merged by a GroupCommit and written together.
+ *
+ * When store.cache.max.bytes is set, merged files are kept in a StoredFileCache and written
+ * behind (store.cache.write.delay.ms) instead of being re-read and rewritten per message.
+ * store.engine=journal instead appends every update to a PropertyJournal and leaves rewriting
+ * the file to its background compaction.
+ *
+ * Huge files can also arrive as a streamed transfer (storeChunk): the chunks are staged on disk
+ * and merged into the stored file entry by entry once the last one arrived, so the server only
+ * holds one chunk and the key names of the transfer in memory.
+ */
+public final class PropertyStore {
+
+    private static final ConcurrentHashMap<Path, PropertyStore> STORES = new ConcurrentHashMap<>();
+    private static final String BACKUP_PREFIX = "_backup_";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String LOCK_DIRECTORY = "locks";
+    private static final String BACKUP_DIRECTORY = "backup";
+    // Subdirectories of store.directory that hold the store's own files
+    private static final Set<String> RESERVED_NAMES = Set.of(BACKUP_DIRECTORY, LOCK_DIRECTORY,
+            PropertyJournal.JOURNAL_DIRECTORY, StreamedTransfers.STAGING_DIRECTORY);
+
+    private final Properties config;
+    private final Path storeDirectory;
+    private final Path lockDirectory;
+    private final boolean appendToFile;
+    private final boolean backupFile;
+    private final StoredFileCache cache;
+    private final PropertyJournal journal;
+    private final GroupCommit groupCommit;
+    private final Durability durability;
+    private final StreamedTransfers transfers;
+
+    private PropertyStore(Path storeDirectory, Properties config) {
+        this.config = config;
+        this.storeDirectory = storeDirectory;
+        this.lockDirectory = storeDirectory.resolve(LOCK_DIRECTORY);
+        this.appendToFile = Boolean.parseBoolean(config.getProperty("append.to.file", "true"));
+        this.backupFile = Boolean.parseBoolean(config.getProperty("backup.file", "false"));
+        this.durability = new Durability(config, this);
+        this.transfers = new StreamedTransfers(storeDirectory, Long.parseLong(config.getProperty("stream.staging.timeout.ms", "600000")));
+        this.groupCommit = new GroupCommit(Integer.parseInt(config.getProperty("store.lock.stripes", "64")),
+                appendToFile, this::write, this);
+
+        this.journal = "journal".equalsIgnoreCase(config.getProperty("store.engine", "properties"))
+                ? new PropertyJournal(this, durability, storeDirectory, Long.parseLong(config.getProperty("store.journal.compact.bytes", "1048576")))
+                : null;
+
+        // The journal already avoids rewriting files, so it is not combined with the cache
+        long cacheBytes = journal != null ? 0 : Long.parseLong(config.getProperty("store.cache.max.bytes", "0"));
+        this.cache = cacheBytes <= 0 ? null
+                : new StoredFileCache(cacheBytes, Long.parseLong(config.getProperty("store.cache.write.delay.ms", "1000")),
+                        entry -> writeFile(entry.path, entry.fileName, entry.properties), this);
+    }
+
+    // Whether a stored file of that name would be one of the store's own directories (compared ignoring
+    // case, like the file system may)
+    public static boolean isReserved(String propFileName) {
+        return RESERVED_NAMES.contains(propFileName.toLowerCase(Locale.ROOT));
+    }
+
+    public static PropertyStore forConfig(Properties config) {
+        Path storeDirectory = Paths.get(config.getProperty("store.directory", "")).toAbsolutePath().normalize();
+        return STORES.computeIfAbsent(storeDirectory, directory -> new PropertyStore(directory, config));
+    }
+
+    // propFileName must already be sanitized. With flushBeforeReturn a cached file is on disk when this returns.
+    public void store(String propFileName, Properties messageProps, boolean flushBeforeReturn) throws IOException {
+        storeSynced(propFileName, messageProps, Set.of(), null, null, flushBeforeReturn);
+    }
+
+    // Delta sync: with a baseHash the update is a delta that is only applied if the file is still at that
+    // version, otherwise false is returned and the client has to send the whole file. contentHash is the
+    // version the file is at afterwards (null when unknown).
+    public boolean storeSynced(String propFileName, Properties messageProps, Set<String> removedKeys, String baseHash,
+            String contentHash, boolean flushBeforeReturn) throws IOException {
+        if (!groupCommit.submit(propFileName, messageProps, removedKeys, baseHash, contentHash, flushBeforeReturn)) {
+            return false;
+        }
+        logToFile("Message successfully processed and written to: " + storeDirectory.resolve(propFileName));
+        return true;
+    }
+
+    // Streamed transfer: chunks are staged in order and the last one merges the whole transfer into the file.
+    // false when the transfer is unknown here (e.g. after a restart) and the client has to start it over.
+    public boolean storeChunk(String propFileName, String transferId, int chunk, boolean last, Properties chunkProps)
+            throws IOException {
+        StreamedTransfers.ChunkResult result = transfers.stage(transferId, propFileName, chunk, chunkProps);
+        if (result == StreamedTransfers.ChunkResult.UNKNOWN) {
+            logToFile("Unknown streamed transfer " + transferId + " chunk " + chunk + " for: " + propFileName);
+            return false;
+        }
+        debugToFile(() -> "Staged chunk " + chunk + " (" + chunkProps.size() + " properties) of transfer " + transferId);
+        if (!last) {
+            return true;
+        }
+
+        // A resent last chunk: its merge is running or over, what it left is unknown to the client
+        StreamedTransfers.Transfer transfer = transfers.get(transferId);
+        if (result == StreamedTransfers.ChunkResult.DUPLICATE || transfer == null) {
+            return false;
+        }
+        try {
+            groupCommit.exclusive(propFileName, () -> commitStream(propFileName, transfer));
+        } finally {
+            transfers.finish(transfer);
+        }
+        logToFile("Streamed transfer of " + transfer.nextChunk + " chunks written to: " + storeDirectory.resolve(propFileName));
+        return true;
+    }
+
+    private void commitStream(String propFileName, StreamedTransfers.Transfer transfer) throws IOException {
+        Path messagePath = storeDirectory.resolve(propFileName);
+        if (!Files.exists(messagePath.getParent())) {
+            Files.createDirectories(messagePath.getParent());
+        }
+
+        if (journal != null) {
+            if (appendToFile) {
+                journal.appendStaged(messagePath, propFileName, transfer.staged);
+            } else {
+                logToFile("Overwriting file: " + messagePath);
+                journal.replaceStaged(messagePath, propFileName, transfer.staged);
+            }
+            return;
+        }
+        if (cache != null) {
+            cache.invalidate(messagePath);
+        }
+        try (FileChannel fileChannel = openLockFile(messagePath)){
+            FileLock lock = acquireFileLock(fileChannel);
+            Path backupPath = backupIfConfigured(messagePath, propFileName);
+            Path existingPath = backupPath != null ? backupPath : messagePath;
+
+            if (appendToFile) {
+                logToFile("Appending streamed transfer to file: " + messagePath);
+                durability.replace(messagePath, writer -> {
+                    writeHeader(writer, "Appended properties");
+                    copyUnchanged(existingPath, transfer.keys, writer);
+                    copyStaged(transfer.staged, writer);
+                });
+            } else {
+                logToFile("Overwriting file: " + messagePath);
+                durability.replace(messagePath, writer -> {
+                    writeHeader(writer, "New Properties");
+                    copyStaged(transfer.staged, writer);
+                });
+            }
+            lock.release();
+        }
+    }
+
+    // Entries of the stored file whose key the transfer does not replace, copied as they are
+    private static void copyUnchanged(Path existingPath, Set<String> replacedKeys, Writer writer) throws IOException {
+        if (!Files.exists(existingPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(existingPath, StandardCharsets.UTF_8)) {
+            PropertiesLineReader entries = new PropertiesLineReader(reader);
+            String entry;
+            while ((entry = entries.nextEntry()) != null) {
+                String key = PropertiesLineReader.keyOf(entry);
+                if (key != null && !replacedKeys.contains(key)) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    static void copyStaged(Path staged, Writer writer) throws IOException {
+        try (Reader reader = Files.newBufferedReader(staged, StandardCharsets.ISO_8859_1)) {
+            reader.transferTo(writer);
+        }
+    }
+
+    // The comment lines Properties.store starts a file with
+    static void writeHeader(Writer writer, String comments) throws IOException {
+        writer.write("#" + comments + "\n#" + new Date() + "\n");
+    }
+
+    // One write per group commit round, messageProps holds every update of the round merged in order
+    private void write(String propFileName, Properties messageProps, Set<String> removedKeys, boolean replace,
+            boolean flushBeforeReturn) throws IOException {
+        Path messagePath = storeDirectory.resolve(propFileName);
+
+        // Ensure the parent directory exists
+        if (!Files.exists(messagePath.getParent())) {
+            Files.createDirectories(messagePath.getParent());
+        }
+
+        if (journal != null) {
+            if (!replace) {
+                journal.append(messagePath, propFileName, messageProps, removedKeys);
+            } else {
+                logToFile("Overwriting file: " + messagePath);
+                journal.replace(messagePath, propFileName, messageProps);
+            }
+        } else if (cache == null) {
+            readMergeWrite(messagePath, propFileName, messageProps, removedKeys, replace);
+        } else {
+            mergeCached(messagePath, propFileName, messageProps, removedKeys, replace, flushBeforeReturn);
+        }
+    }
+
+    private void readMergeWrite(Path messagePath, String propFileName, Properties messageProps, Set<String> removedKeys,
+            boolean replace) throws IOException {
+        try (FileChannel fileChannel = openLockFile(messagePath)){
+            FileLock lock = acquireFileLock(fileChannel);
+            Properties existingProps = loadProperties(messagePath);
+
+            backupIfConfigured(messagePath, propFileName);
+
+            // Append or overwrite based on config
+            if (!replace) {
+                logToFile("Appending to file: " + messagePath);
+                debugToFile(() -> "Existing properties before merge: " + existingProps);
+                long mergeStart = System.nanoTime();
+                existingProps.putAll(messageProps);
+                existingProps.keySet().removeAll(removedKeys);
+                ServerMetrics.record(ServerMetrics.Stage.MERGE, mergeStart);
+                debugToFile(() -> "Merged properties: " + existingProps);
+                durability.replace(messagePath, existingProps, "Appended properties");
+            } else {
+                logToFile("Overwriting file: " + messagePath);
+                durability.replace(messagePath, messageProps, "New Properties");
+            }
+            lock.release();
+        }
+    }
+
+    private void mergeCached(Path messagePath, String propFileName, Properties messageProps, Set<String> removedKeys,
+            boolean replace, boolean flushBeforeReturn) throws IOException {
+        while (true) {
+            StoredFileCache.Entry entry = cache.get(messagePath, propFileName);
+            entry.lock.lock();
+            try {
+                if (entry.evicted) {
+                    continue; // Lost a race with eviction, use the fresh entry
+                }
+                long size = entry.sizeBytes;
+                if (entry.properties == null) {
+                    // Only the first message for a file (or the first after eviction) reads it from disk
+                    entry.properties = loadProperties(messagePath);
+                    size = StoredFileCache.sizeOf(entry.properties);
+                }
+                long mergeStart = System.nanoTime();
+                if (!replace) {
+                    logToFile("Appending to cached file: " + messagePath);
+                    for (Map.Entry<Object, Object> property : messageProps.entrySet()) {
+                        Object previous = entry.properties.put(property.getKey(), property.getValue());
+                        size += StoredFileCache.sizeOf(property.getKey(), property.getValue())
+                                - (previous == null ? 0 : StoredFileCache.sizeOf(property.getKey(), previous));
+                    }
+                    for (String removedKey : removedKeys) {
+                        Object previous = entry.properties.remove(removedKey);
+                        size -= previous == null ? 0 : StoredFileCache.sizeOf(removedKey, previous);
+                    }
+                } else {
+                    logToFile("Overwriting cached file: " + messagePath);
+                    entry.properties = new Properties();
+                    entry.properties.putAll(messageProps);
+                    size = StoredFileCache.sizeOf(entry.properties);
+                }
+                ServerMetrics.record(ServerMetrics.Stage.MERGE, mergeStart);
+                cache.changed(entry, size);
+
+                if (flushBeforeReturn) {
+                    cache.flush(entry);
+                }
+                return;
+            } finally {
+                entry.lock.unlock();
+            }
+        }
+    }
+
+    // Writes a complete, already merged file (cache flushes)
+    private void writeFile(Path messagePath, String propFileName, Properties properties) throws IOException {
+        try (FileChannel fileChannel = openLockFile(messagePath)){
+            FileLock lock = acquireFileLock(fileChannel);
+            backupIfConfigured(messagePath, propFileName);
+            durability.replace(messagePath, properties, appendToFile ? "Appended properties" : "New Properties");
+            lock.release();
+        }
+    }
+
+    Properties loadProperties(Path messagePath) throws IOException {
+        long start = System.nanoTime();
+        Properties properties = new Properties();
+        if (Files.exists(messagePath)) {
+            try (Reader reader = Files.newBufferedReader(messagePath, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        ServerMetrics.record(ServerMetrics.Stage.LOAD, start);
+        return properties;
+    }
+
+    // Handle backup if the file exists and backup.file is true, returns where the file was moved (or null)
+    Path backupIfConfigured(Path messagePath, String propFileName) throws IOException {
+        if (!backupFile || !Files.exists(messagePath)) {
+            return null;
+        }
+        logToFile("Backing up the file: " + messagePath);
+        long start = System.nanoTime();
+        Path backupDir = storeDirectory.resolve(BACKUP_DIRECTORY);
+        if (!Files.exists(backupDir)) {
+            Files.createDirectories(backupDir);
+        }
+        String backupFileName = String.format("%d" + BACKUP_PREFIX + "%s", System.currentTimeMillis(), propFileName);
+        Path backupPath = backupDir.resolve(backupFileName);
+        Files.move(messagePath, backupPath, StandardCopyOption.REPLACE_EXISTING);
+        ServerMetrics.record(ServerMetrics.Stage.BACKUP, start);
+        logToFile("File moved to backup location: " + backupPath);
+        return backupPath;
+    }
+
+    // The stored file is replaced by a rename, a lock on it would stay with the old inode while the
+    // next writer opens and locks the new one. Writers lock a file in store.directory/locks instead,
+    // apart from the stored files so no client file name is a lock file. It is never replaced or
+    // deleted, another writer may have it open.
+    private FileChannel openLockFile(Path messagePath) throws IOException {
+        Path lockPath = lockDirectory.resolve(storeDirectory.relativize(messagePath) + LOCK_SUFFIX);
+        Files.createDirectories(lockPath.getParent());
+        return FileChannel.open(lockPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    // FileChannel.lock() blocks inside native code, which pins a virtual thread to its carrier.
+    // Polling tryLock() sleeps between attempts instead, and also waits out a lock held by another
+    // thread of this JVM, where lock() would throw an OverlappingFileLockException.
+    static FileLock acquireFileLock(FileChannel fileChannel) throws IOException {
+        long start = System.nanoTime();
+        long backoffMillis = 1;
+        while (true) {
+            try {
+                FileLock lock = fileChannel.tryLock();
+                if (lock != null) {
+                    ServerMetrics.record(ServerMetrics.Stage.LOCK_WAIT, start);
+                    return lock;
+                }
+            } catch (OverlappingFileLockException e) {
+                // Locked by another ServerLogic thread, retry below
+            }
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FileLockInterruptionException();
+            }
+            backoffMillis = Math.min(backoffMillis * 2, 50);
+        }
+    }
+
+    void logToFile(String message) {
+        AsyncLogger.forConfig(config).info("[" + Thread.currentThread().getName() + "] " + message);
+    }
+
+    void debugToFile(Supplier<String> message) {
+        AsyncLogger.forConfig(config).debug(() -> "[" + Thread.currentThread().getName() + "] " + message.get());
+    }
+}
@@ -0,0 +1,212 @@
+package com.server.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded LRU cache of the merged properties of stored files, used by PropertyStore when
+ * store.cache.max.bytes is set.
+ *
+ * Merges are applied to the cached copy and the entry is marked dirty; it is written out
+ * store.cache.write.delay.ms later, so a hot file that receives many updates in that window
+ * is written once. Entries are weighed by an estimate of their size in memory and the least
+ * recently used ones are evicted (after being flushed) once the cache is over its budget.
+ *
+ * An entry is only read or changed while holding its own lock, a ReentrantLock rather than its
+ * monitor because files are read and written under it, which would pin a virtual thread to its
+ * carrier for the whole I/O. An entry chosen for eviction
+ * stays in the cache until it is written, so a message for it in the meantime still merges into
+ * the cached copy (and is written with it) instead of reading a stale file. Only then is it
+ * marked evicted and removed, a thread that still holds a reference to it fetches a fresh one.
+ */
+class StoredFileCache {
+
+    interface FlushAction {
+        void flush(Entry entry) throws IOException;
+    }
+
+    static final class Entry {
+        final Path path;
+        final String fileName;
+        final ReentrantLock lock = new ReentrantLock();
+        Properties properties;
+        long sizeBytes;
+        boolean dirty;
+        boolean evicted;
+        // Guarded by the cache: chosen for eviction, its size when chosen (0 if not)
+        long evictingBytes;
+
+        Entry(Path path, String fileName) {
+            this.path = path;
+            this.fileName = fileName;
+        }
+    }
+
+    private final long maxBytes;
+    private final long writeDelayMillis;
+    private final FlushAction flushAction;
+    private final PropertyStore store;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService flusher;
+    private long cachedBytes;
+    // Part of cachedBytes that is on its way out, not counted again when choosing victims
+    private long evictingBytes;
+
+    StoredFileCache(long maxBytes, long writeDelayMillis, FlushAction flushAction, PropertyStore store) {
+        this.maxBytes = maxBytes;
+        this.writeDelayMillis = writeDelayMillis;
+        this.flushAction = flushAction;
+        this.store = store;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "store-cache-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushAll, "store-cache-shutdown-flush"));
+    }
+
+    // The caller locks the returned entry and must retry if it turns out to be evicted
+    synchronized Entry get(Path path, String fileName) {
+        return entries.computeIfAbsent(path, key -> new Entry(key, fileName));
+    }
+
+    // Called with the entry's lock held after its properties changed, newSize as tracked by the caller
+    void changed(Entry entry, long newSize) {
+        List<Entry> victims;
+        synchronized (this) {
+            cachedBytes += newSize - entry.sizeBytes;
+            entry.sizeBytes = newSize;
+            victims = selectVictims(entry);
+        }
+        if (!entry.dirty) {
+            entry.dirty = true;
+            flusher.schedule(() -> flushQuietly(entry), writeDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        // Written outside the cache lock, another thread may be using the victim
+        if (!victims.isEmpty()) {
+            flusher.execute(() -> victims.forEach(this::evict));
+        }
+    }
+
+    // Called with the entry's lock held
+    void flush(Entry entry) throws IOException {
+        if (entry.dirty) {
+            flushAction.flush(entry);
+            entry.dirty = false;
+        }
+    }
+
+    private void flushQuietly(Entry entry) {
+        entry.lock.lock();
+        try {
+            flush(entry);
+        } catch (IOException e) {
+            store.logToFile("Error flushing cached file " + entry.path + ": " + e.getMessage());
+            flusher.schedule(() -> flushQuietly(entry), writeDelayMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    private List<Entry> selectVictims(Entry inUse) {
+        List<Entry> victims = new ArrayList<>();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (cachedBytes - evictingBytes > maxBytes && eldest.hasNext()) {
+            Entry candidate = eldest.next();
+            if (candidate == inUse || candidate.evictingBytes > 0) {
+                continue;
+            }
+            candidate.evictingBytes = Math.max(1, candidate.sizeBytes);
+            evictingBytes += candidate.evictingBytes;
+            victims.add(candidate);
+        }
+        return victims;
+    }
+
+    // The victim leaves the cache only once it is written, lock order is entry then cache like in changed()
+    private void evict(Entry victim) {
+        victim.lock.lock();
+        try {
+            try {
+                flush(victim);
+            } catch (IOException e) {
+                // Stays cached with its properties, so later messages still merge into them
+                store.logToFile("Error flushing evicted file " + victim.path + ": " + e.getMessage());
+                synchronized (this) {
+                    evictingBytes -= victim.evictingBytes;
+                    victim.evictingBytes = 0;
+                }
+                flusher.schedule(() -> flushQuietly(victim), writeDelayMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            victim.evicted = true;
+            victim.properties = null;
+            synchronized (this) {
+                evictingBytes -= victim.evictingBytes;
+                victim.evictingBytes = 0;
+                if (entries.remove(victim.path, victim)) {
+                    cachedBytes -= victim.sizeBytes;
+                }
+            }
+        } finally {
+            victim.lock.unlock();
+        }
+    }
+
+    // Writes and drops the cached copy of a file that is about to be changed on disk directly (streamed transfers)
+    void invalidate(Path path) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry == null) {
+            return;
+        }
+        entry.lock.lock();
+        try {
+            flush(entry); // Stays cached if this fails
+            entry.evicted = true;
+            entry.properties = null;
+            synchronized (this) {
+                if (entries.remove(path, entry)) {
+                    cachedBytes -= entry.sizeBytes;
+                    evictingBytes -= entry.evictingBytes;
+                    entry.evictingBytes = 0;
+                }
+            }
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    void flushAll() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries.values());
+        }
+        snapshot.forEach(this::flushQuietly);
+    }
+
+    static long sizeOf(Properties properties) {
+        long size = 64;
+        for (Map.Entry<Object, Object> property : properties.entrySet()) {
+            size += sizeOf(property.getKey(), property.getValue());
+        }
+        return size;
+    }
+
+    // Rough heap footprint of one property: two bytes per char plus the Hashtable node and String headers
+    static long sizeOf(Object key, Object value) {
+        return 96 + 2L * (key.toString().length() + value.toString().length());
+    }
+}
@@ -0,0 +1,111 @@
+package com.server.store;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chunked transfers of large files that are still arriving.
+ *
+ * The chunks of a transfer are appended, already escaped, to store.directory/staging/&lt;id&gt;.part
+ * as they arrive, so the server never holds more than one chunk of values in memory. Chunks have
+ * to arrive in order; a chunk that was already staged (resent after a lost ack) is accepted again
+ * without being staged twice, which lets a client resume after a dropped connection. Transfers
+ * without a chunk for stream.staging.timeout.ms are dropped.
+ */
+class StreamedTransfers {
+
+    static final String STAGING_DIRECTORY = "staging";
+
+    enum ChunkResult { STAGED, DUPLICATE, UNKNOWN }
+
+    static final class Transfer {
+        final String id;
+        final String fileName;
+        final Path staged;
+        // Keys of the whole transfer, needed to drop the lines they replace when merging
+        final Set<String> keys = new HashSet<>();
+        int nextChunk;
+        long lastChunkMillis = System.currentTimeMillis();
+
+        Transfer(String id, String fileName, Path staged) {
+            this.id = id;
+            this.fileName = fileName;
+            this.staged = staged;
+        }
+    }
+
+    private final Path stagingDirectory;
+    private final long timeoutMillis;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+
+    StreamedTransfers(Path storeDirectory, long timeoutMillis) {
+        this.stagingDirectory = storeDirectory.resolve(STAGING_DIRECTORY);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // UNKNOWN when the transfer is not known here (e.g. the server restarted) or a chunk is missing
+    ChunkResult stage(String transferId, String fileName, int chunk, Properties properties) throws IOException {
+        Transfer transfer = chunk == 0 ? transfers.computeIfAbsent(transferId, id -> start(id, fileName)) : transfers.get(transferId);
+        if (transfer == null || !transfer.fileName.equals(fileName)) {
+            return ChunkResult.UNKNOWN;
+        }
+        synchronized (transfer) {
+            if (chunk < transfer.nextChunk) {
+                return ChunkResult.DUPLICATE;
+            }
+            if (chunk > transfer.nextChunk) {
+                return ChunkResult.UNKNOWN;
+            }
+            if (chunk == 0) {
+                Files.createDirectories(stagingDirectory);
+            }
+            StringBuilder lines = new StringBuilder();
+            PropertyJournal.appendEscaped(lines, properties, "");
+            Files.write(transfer.staged, lines.toString().getBytes(StandardCharsets.ISO_8859_1),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            properties.keySet().forEach(key -> transfer.keys.add((String) key));
+            transfer.nextChunk++;
+            transfer.lastChunkMillis = System.currentTimeMillis();
+            return ChunkResult.STAGED;
+        }
+    }
+
+    Transfer get(String transferId) {
+        return transfers.get(transferId);
+    }
+
+    void finish(Transfer transfer) throws IOException {
+        transfers.remove(transfer.id);
+        Files.deleteIfExists(transfer.staged);
+    }
+
+    private Transfer start(String transferId, String fileName) {
+        dropExpired();
+        return new Transfer(transferId, fileName,
+                stagingDirectory.resolve(transferId.replaceAll("[^A-Za-z0-9-]", "_") + ".part"));
+    }
+
+    private void dropExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Transfer> iterator = transfers.values().iterator(); iterator.hasNext();) {
+            Transfer transfer = iterator.next();
+            if (now - transfer.lastChunkMillis > timeoutMillis) {
+                iterator.remove();
+                try {
+                    Files.deleteIfExists(transfer.staged);
+                } catch (IOException e) {
+                    // Left behind, the staging directory only holds unfinished transfers
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AckChannelTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    @Test
+    public void idleChannelIsClosedAndItsWriterEnds() throws Exception {
+        Properties config = config();
+        config.setProperty("ack.channel.idle.ms", "100");
+
+        try (ServerSocket listener = new ServerSocket(0)) {
+            int port = listener.getLocalPort();
+            AckChannel channel = AckChannel.forClient(config, HOST, port);
+            channel.send("a.properties=Success");
+            try (Socket socket = listener.accept()) {
+                assertEquals("a.properties=Success", reader(socket).readLine());
+                awaitClosed(port);
+            }
+            assertFalse(writerRunning(port));
+
+            // Whoever still holds the closed channel gets a new one for the same listener
+            channel.send("b.properties=Success");
+            try (Socket socket = listener.accept()) {
+                assertEquals("b.properties=Success", reader(socket).readLine());
+            }
+        }
+    }
+
+    @Test
+    public void channelOfAClientThatWentAwayIsDropped() throws Exception {
+        Properties config = config();
+        config.setProperty("ack.channel.retries", "0");
+
+        int port;
+        AckChannel channel;
+        try (ServerSocket listener = new ServerSocket(0)) {
+            port = listener.getLocalPort();
+            channel = AckChannel.forClient(config, HOST, port);
+            channel.send("a.properties=Success");
+            try (Socket socket = listener.accept()) {
+                assertEquals("a.properties=Success", reader(socket).readLine());
+            }
+        }
+
+        // Writes to the closed connection fail, and so does the reconnect
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (AckChannel.isOpen(HOST, port)) {
+            assertFalse("Channel was not dropped", System.nanoTime() > deadline);
+            channel.send("b.properties=Success");
+            Thread.sleep(20);
+        }
+        awaitWriterEnded(port);
+    }
+
+    private static void awaitClosed(int port) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (AckChannel.isOpen(HOST, port)) {
+            assertFalse("Channel was not closed", System.nanoTime() > deadline);
+            Thread.sleep(10);
+        }
+        awaitWriterEnded(port);
+    }
+
+    private static void awaitWriterEnded(int port) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (writerRunning(port)) {
+            assertTrue("Writer thread still running", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean writerRunning(int port) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals("ack-channel-" + HOST + ":" + port));
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Properties config() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", Files.createTempDirectory("ack-channel-test").resolve("server.log").toString());
+        return config;
+    }
+}
@@ -0,0 +1,33 @@
+package com.server;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+import com.server.multiClient.ChecksumRegistryTest;
+import com.server.protocol.BinaryMapCodecTest;
+import com.server.store.GroupCommitTest;
+import com.server.store.PropertyJournalTest;
+import com.server.store.PropertyStoreTest;
+import com.server.store.StoredFileCacheTest;
+import com.server.store.StreamedTransfersTest;
+
+@RunWith(Suite.class)
+@SuiteClasses({
+        AckChannelTest.class,
+        BinaryMapCodecTest.class,
+        BusyBackoffTest.class,
+        ChecksumRegistryTest.class,
+        GatedExecutorTest.class,
+        GroupCommitTest.class,
+        KeyFilterTest.class,
+        PropertyJournalTest.class,
+        PropertyStoreTest.class,
+        SelectorServerTest.class,
+        ServerLogicTest.class,
+        StoredFileCacheTest.class,
+        StreamedTransfersTest.class,
+        WatchRootTest.class
+})
+public class AllTests {
+}
@@ -0,0 +1,83 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BusyBackoffTest {
+
+    private static final Path FILE = Paths.get("a.properties");
+
+    @Test
+    public void recognizesBusyStatuses() {
+        assertTrue(BusyBackoff.isBusy("Busy"));
+        assertTrue(BusyBackoff.isBusy("Busy:1000"));
+        assertFalse(BusyBackoff.isBusy("Success"));
+        assertFalse(BusyBackoff.isBusy("Busyness"));
+        assertFalse(BusyBackoff.isBusy(null));
+    }
+
+    @Test
+    public void delayDoublesWithJitterUpToTheMaximum() {
+        BusyBackoff backoff = new BusyBackoff(config(100, 1000), path -> { });
+
+        for (int attempt = 0; attempt < 6; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            long delay = backoff.nextDelay(FILE, "Busy");
+            assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void neverWaitsLessThanTheServerAsked() {
+        BusyBackoff backoff = new BusyBackoff(config(10, 100), path -> { });
+
+        assertTrue(backoff.nextDelay(FILE, "Busy:5000") >= 5000);
+        // A malformed retry after falls back to the backoff alone
+        assertTrue(backoff.nextDelay(FILE, "Busy:soon") <= 100);
+    }
+
+    @Test
+    public void otherAnswerStartsTheBackoffOver() {
+        BusyBackoff backoff = new BusyBackoff(config(100, 10000), path -> { });
+        for (int attempt = 0; attempt < 5; attempt++) {
+            backoff.nextDelay(FILE, "Busy");
+        }
+
+        backoff.answered(FILE);
+
+        assertTrue(backoff.nextDelay(FILE, "Busy") <= 100);
+    }
+
+    @Test
+    public void retryLaterResendsTheFileAfterTheBackoff() throws Exception {
+        CountDownLatch resent = new CountDownLatch(1);
+        Path[] resentFile = new Path[1];
+        BusyBackoff backoff = new BusyBackoff(config(20, 20), path -> {
+            resentFile[0] = path;
+            resent.countDown();
+        });
+
+        backoff.retryLater(FILE, "Busy:0");
+        assertTrue(backoff.isWaiting(FILE));
+
+        assertTrue(resent.await(5, TimeUnit.SECONDS));
+        assertEquals(FILE, resentFile[0]);
+        assertFalse(backoff.isWaiting(FILE));
+    }
+
+    private static Properties config(long baseMillis, long maxMillis) {
+        Properties config = new Properties();
+        config.setProperty("busy.retry.base.ms", String.valueOf(baseMillis));
+        config.setProperty("busy.retry.max.ms", String.valueOf(maxMillis));
+        return config;
+    }
+}
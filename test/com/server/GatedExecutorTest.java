@@ -0,0 +1,43 @@
+package com.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class GatedExecutorTest {
+
+    @Test
+    public void rejectsBeyondItsLimitUntilATaskFinishes() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            GatedExecutor gated = new GatedExecutor(pool, 1);
+            CompletableFuture<Void> release = new CompletableFuture<>();
+            gated.execute(release::join);
+            try {
+                gated.execute(() -> { });
+                throw new AssertionError("Expected the second task to be rejected");
+            } catch (RejectedExecutionException expected) {
+                // Over the limit, answered Busy by the server
+            }
+
+            release.complete(null);
+            // The permit comes back once the first task finished
+            CompletableFuture<Void> admitted = new CompletableFuture<>();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!admitted.isDone() && System.nanoTime() < deadline) {
+                try {
+                    gated.execute(() -> admitted.complete(null));
+                } catch (RejectedExecutionException notYet) {
+                    Thread.sleep(10);
+                }
+            }
+            admitted.get(5, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
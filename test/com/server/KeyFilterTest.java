@@ -0,0 +1,121 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class KeyFilterTest {
+
+    private static final List<String> KEYS = List.of("", "a", "ab", "abc", "b", "xab", "a.b", "aXb", "a.bc",
+            "user.name", "user.id", "user", "name.user", "tmp", "x.tmp", "tmp.x", "key1", "key22", "k$", "a\nb", "user.\n");
+
+    // The filter.regex default, which like any regex does not match across a line terminator
+    private static final Pattern DEFAULT = Pattern.compile(".*");
+
+    @Test
+    public void noRulesMatchLikeTheDefaultRegex() {
+        KeyFilter filter = filter();
+
+        for (String key : KEYS) {
+            assertEquals(key, DEFAULT.matcher(key).matches(), filter.accepts(key));
+        }
+    }
+
+    @Test
+    public void everyRuleShapeMatchesLikeItsRegex() {
+        String[] rules = {
+                "ab", "^ab$", "a\\.b", "user\\..*", ".*\\.tmp", ".*", "^.*$", "user.*", ".*user", "key\\d+",
+                "a.b", "(ab|b)", "k\\$", "a\\db", ".*a.*"
+        };
+        for (String rule : rules) {
+            Pattern pattern = Pattern.compile(rule);
+            KeyFilter included = filter("filter.regex", rule);
+            KeyFilter excluded = filter("filter.exclude.1", rule);
+            for (String key : KEYS) {
+                boolean matches = pattern.matcher(key).matches();
+                assertEquals(rule + " on '" + key + "'", matches, included.accepts(key));
+                assertEquals(rule + " excluding '" + key + "'", DEFAULT.matcher(key).matches() && !matches, excluded.accepts(key));
+            }
+        }
+    }
+
+    @Test
+    public void excludeRulesWinOverIncludeRules() {
+        KeyFilter filter = filter("filter.include.1", "user\\..*", "filter.include.2", ".*\\.tmp",
+                "filter.exclude.1", "user\\.id", "filter.exclude.2", "tmp\\..*");
+
+        assertTrue(filter.accepts("user.name"));
+        assertFalse(filter.accepts("user.id"));
+        assertTrue(filter.accepts("x.tmp"));
+        assertFalse(filter.accepts("tmp.tmp"));
+        assertFalse(filter.accepts("other"));
+    }
+
+    @Test
+    public void regexDecisionsAreTheSameOnceCached() {
+        KeyFilter filter = filter("filter.regex", "key\\d+", "filter.exclude.1", ".*2.*", "filter.cache.size", "1");
+
+        for (int pass = 0; pass < 2; pass++) {
+            assertTrue(filter.accepts("key1"));
+            assertFalse(filter.accepts("key22"));
+            assertFalse(filter.accepts("keyx"));
+        }
+    }
+
+    @Test
+    public void rootWithRulesOfItsOwnIgnoresTheGlobalOnes() {
+        Properties config = config("filter.regex", "global.*", "root.docs.filter.include.1", "docs.*");
+
+        KeyFilter docs = KeyFilter.fromConfig(config, "root.docs.");
+        assertTrue(docs.accepts("docs.title"));
+        assertFalse(docs.accepts("global.key"));
+
+        KeyFilter other = KeyFilter.fromConfig(config, "root.other.");
+        assertTrue(other.accepts("global.key"));
+        assertFalse(other.accepts("docs.title"));
+    }
+
+    @Test
+    public void invalidRuleNamesItsSetting() {
+        try {
+            filter("filter.exclude.7", "(unclosed");
+            fail("Invalid regex accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("filter.exclude.7"));
+        }
+    }
+
+    @Test
+    public void filterKeepsAcceptedEntriesUnderTheirTrimmedKey() throws Exception {
+        KeyFilter filter = filter("filter.regex", "user\\..*", "filter.exclude.1", "user\\.password");
+        Path file = Files.createTempFile("key-filter-test", ".properties");
+        Files.write(file, List.of(" user.name = alice", "user.password=secret", "other=1"), StandardCharsets.ISO_8859_1);
+
+        Map<String, String> filtered = filter.filterFile(file);
+
+        assertEquals(Map.of("user.name", "alice"), filtered);
+    }
+
+    private static KeyFilter filter(String... settings) {
+        return KeyFilter.fromConfig(config(settings), "");
+    }
+
+    private static Properties config(String... settings) {
+        Properties config = new Properties();
+        for (int i = 0; i < settings.length; i += 2) {
+            config.setProperty(settings[i], settings[i + 1]);
+        }
+        return config;
+    }
+}
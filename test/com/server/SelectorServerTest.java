@@ -0,0 +1,154 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.server.protocol.Frame;
+import com.server.protocol.FrameIO;
+import com.server.protocol.ServerConnection;
+
+public class SelectorServerTest {
+
+    private Thread serverThread;
+    private ServerConnection connection;
+
+    @After
+    public void stop() {
+        if (connection != null) {
+            connection.close();
+        }
+        if (serverThread != null) {
+            serverThread.interrupt();
+        }
+    }
+
+    @Test
+    public void fullPoolAnswersBusyUnderTheRequestId() throws Exception {
+        // A pool that rejects everything, like one whose queue is full
+        ExecutorService rejecting = Executors.newSingleThreadExecutor();
+        rejecting.shutdown();
+        Properties config = config();
+        config.setProperty("server.busy.retry.after.ms", "250");
+        start(config, rejecting);
+
+        CompletableFuture<String> single = send(config, message("a.properties"));
+        assertEquals("Busy:250", single.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> batch = connection.sendBatch(List.of(message("b.properties"), message("c.properties")));
+        assertEquals("Busy:250", batch.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pipelinedFramesAreLimitedOneByOne() throws Exception {
+        ExecutorService rejecting = Executors.newSingleThreadExecutor();
+        rejecting.shutdown();
+        Properties config = config();
+        config.setProperty("server.busy.retry.after.ms", "250");
+        config.setProperty("max.message.bytes", "1000");
+        start(config, rejecting);
+
+        // Twenty payloads of exactly the limit, written at once: far more than the limit and the initial buffer
+        int frames = 20;
+        ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(pipelined);
+        FrameIO.writePreamble(out);
+        for (int requestId = 1; requestId <= frames; requestId++) {
+            FrameIO.write(out, new Frame(Frame.MESSAGE, requestId, new byte[1000]));
+        }
+
+        try (Socket socket = connect(config)) {
+            socket.setSoTimeout(5000);
+            DataOutputStream socketOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socketOut.write(pipelined.toByteArray());
+            socketOut.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int requestId = 1; requestId <= frames; requestId++) {
+                Frame ack = FrameIO.read(in, FrameIO.MAX_FRAME_BYTES);
+                assertEquals(requestId, ack.getRequestId());
+                assertEquals("Busy:250", new String(ack.getPayload(), 0, ack.getPayloadLength(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void start(Properties config, ExecutorService pool) throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        config.setProperty("server.port", String.valueOf(port));
+        serverThread = new Thread(() -> {
+            try {
+                new SelectorServer(config, pool).serve(port);
+            } catch (IOException e) {
+                // Stopped
+            }
+        }, "selector-server-test");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    // Retries until the server thread is listening
+    private CompletableFuture<String> send(Properties config, Map<String, String> message) throws Exception {
+        connection = new ServerConnection(config, ack -> { });
+        for (int attempt = 0;; attempt++) {
+            try {
+                return connection.send(message);
+            } catch (IOException e) {
+                if (attempt >= 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // Retries until the server thread is listening
+    private static Socket connect(Properties config) throws Exception {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return new Socket("localhost", Integer.parseInt(config.getProperty("server.port")));
+            } catch (IOException e) {
+                if (attempt >= 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static Map<String, String> message(String fileName) {
+        Map<String, String> message = new HashMap<>();
+        message.put("##FILENAME##", fileName);
+        message.put("key", "value");
+        return message;
+    }
+
+    private static Properties config() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("server.host", "localhost");
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", Files.createTempDirectory("selector-server-test").resolve("server.log").toString());
+        return config;
+    }
+}
@@ -0,0 +1,41 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class ServerLogicTest {
+
+    @Test
+    public void plainNamesAreStoredAsBefore() {
+        assertEquals("a.properties", ServerLogic.storeName("a.properties"));
+        assertEquals("a_b_c.properties", ServerLogic.storeName("a:b*c.properties"));
+        assertEquals("a_b.properties", ServerLogic.storeName("a?b.properties"));
+    }
+
+    @Test
+    public void namesWithADirectoryAreEscaped() {
+        assertEquals("b%2Fsub%2Fa.properties", ServerLogic.storeName("b/sub/a.properties"));
+        assertEquals("b%5Ca%3A.properties", ServerLogic.storeName("b\\a:.properties"));
+        assertNotEquals(ServerLogic.storeName("a/b.properties"), ServerLogic.storeName("a_b.properties"));
+        // A plain name can not pass for an escaped one
+        assertEquals("a%252Fb.properties", ServerLogic.storeName("a%2Fb.properties"));
+        assertNotEquals(ServerLogic.storeName("a/b.properties"), ServerLogic.storeName("a%2Fb.properties"));
+    }
+
+    @Test
+    public void dotNamesAreEscaped() {
+        assertEquals("%2E", ServerLogic.storeName("."));
+        assertEquals("%2E%2E", ServerLogic.storeName(".."));
+    }
+
+    @Test
+    public void storeDirectoryNamesAreEscaped() {
+        assertEquals("%6Cocks", ServerLogic.storeName("locks"));
+        assertEquals("%4Aournal", ServerLogic.storeName("Journal"));
+        assertEquals("%73taging", ServerLogic.storeName("staging"));
+        assertEquals("%62ackup", ServerLogic.storeName("backup"));
+        assertEquals("locks.properties", ServerLogic.storeName("locks.properties"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class WatchRootTest {
+
+    @Test
+    public void singleRootSendsRelativePath() {
+        Properties config = new Properties();
+        config.setProperty("monitored.directory", "/watched");
+        List<WatchRoot> roots = WatchRoot.fromConfig(config);
+        Path file = Paths.get("/watched/sub/a.properties");
+
+        String name = roots.get(0).fileNameFor(file);
+
+        assertEquals("sub/a.properties", name);
+        assertSame(roots.get(0), WatchRoot.sending(roots, name));
+        assertEquals(file, roots.get(0).pathFor(name));
+    }
+
+    @Test
+    public void namedRootsKeepSameRelativePathApart() {
+        Properties config = new Properties();
+        config.setProperty("monitored.roots", "first,second");
+        config.setProperty("root.first.directory", "/one");
+        config.setProperty("root.second.directory", "/two");
+        List<WatchRoot> roots = WatchRoot.fromConfig(config);
+        Path inSecond = Paths.get("/two/sub/a.properties");
+
+        String name = WatchRoot.containing(roots, inSecond).fileNameFor(inSecond);
+
+        assertEquals("second/sub/a.properties", name);
+        assertEquals("first/sub/a.properties", roots.get(0).fileNameFor(Paths.get("/one/sub/a.properties")));
+        WatchRoot sender = WatchRoot.sending(roots, name);
+        assertSame(roots.get(1), sender);
+        assertEquals(inSecond, sender.pathFor(name));
+        assertNull(WatchRoot.sending(roots, "third/a.properties"));
+    }
+
+    @Test
+    public void namesLeavingTheRootAreRejected() {
+        Properties config = new Properties();
+        config.setProperty("monitored.roots", "first");
+        config.setProperty("root.first.directory", "/one");
+        WatchRoot root = WatchRoot.fromConfig(config).get(0);
+
+        assertEquals(Paths.get("/one/sub/a.properties"), root.pathFor("first/sub/a.properties"));
+        assertNull(root.pathFor("first/../a.properties"));
+        assertNull(root.pathFor("first/sub/../../two/a.properties"));
+        assertNull(root.pathFor("first//etc/a.properties"));
+    }
+
+    @Test
+    public void withinKeepsNamesInTheirFolder() {
+        Path failed = Paths.get("failed").toAbsolutePath();
+
+        assertEquals(failed.resolve("b/sub/a.properties"), WatchRoot.within(failed, "b/sub/a.properties"));
+        assertNull(WatchRoot.within(failed, "../a.properties"));
+        assertNull(WatchRoot.within(failed, "b/../../a.properties"));
+        assertNull(WatchRoot.within(failed, failed.getParent().resolve("a.properties").toString()));
+        assertNull(WatchRoot.within(failed, "."));
+    }
+}
@@ -0,0 +1,85 @@
+package com.server.multiClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ChecksumRegistryTest {
+
+    private static final String NAME = "a.properties";
+    private static final Path PATH = Paths.get("watched", NAME);
+
+    private final ChecksumRegistry registry = new ChecksumRegistry();
+
+    @Test
+    public void busyForgetsExactlyTheSendItAnswered() {
+        ChecksumRegistry.Send first = registry.record(NAME, PATH, "h1");
+        ChecksumRegistry.Send second = registry.record(NAME, PATH, "h2");
+
+        assertTrue(registry.forget(second));
+        assertFalse(registry.forget(second));
+
+        // The first send is still waiting for its ack
+        assertTrue(registry.isOutstanding(NAME));
+        assertEquals(ChecksumRegistry.Result.VERIFIED, registry.verify(NAME, "h1"));
+        assertFalse(registry.isOutstanding(NAME));
+        assertFalse(registry.forget(first));
+    }
+
+    @Test
+    public void ackCancelsTheConnectionReply() {
+        ChecksumRegistry.Send send = registry.record(NAME, PATH, "h1");
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        send.awaitReply(reply);
+
+        registry.verify(NAME, "h1");
+
+        assertTrue(reply.isCancelled());
+    }
+
+    @Test
+    public void replyAttachedAfterTheAckIsCancelled() {
+        ChecksumRegistry.Send send = registry.record(NAME, PATH, "h1");
+        registry.verify(NAME, "h1");
+
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        send.awaitReply(reply);
+
+        assertTrue(reply.isCancelled());
+    }
+
+    @Test
+    public void mismatchAnswersTheOldestSend() {
+        registry.record(NAME, PATH, "h1");
+        ChecksumRegistry.Send second = registry.record(NAME, PATH, "h2");
+
+        assertEquals(ChecksumRegistry.Result.MISMATCH, registry.verify(NAME, "other"));
+        assertTrue(registry.forget(second));
+        assertEquals(ChecksumRegistry.Result.UNKNOWN, registry.verify(NAME, "h1"));
+    }
+
+    @Test
+    public void sendsWithoutAckExpire() throws Exception {
+        ChecksumRegistry.Send send = registry.record(NAME, PATH, "h1");
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        send.awaitReply(reply);
+
+        assertTrue(registry.expire(TimeUnit.HOURS.toNanos(1)).isEmpty());
+        Thread.sleep(5);
+        List<ChecksumRegistry.Send> expired = registry.expire(TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertEquals(1, expired.size());
+        assertSame(send, expired.get(0));
+        assertTrue(reply.isCancelled());
+        assertFalse(registry.isOutstanding(NAME));
+    }
+}
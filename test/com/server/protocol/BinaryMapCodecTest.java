@@ -0,0 +1,100 @@
+package com.server.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BinaryMapCodecTest {
+
+    private final MapCodec codec = MapCodec.BINARY;
+
+    @Test
+    public void roundTripsMapWithFileName() throws IOException {
+        Map<String, String> message = new HashMap<>();
+        message.put("##FILENAME##", "sub/a.properties");
+        message.put("key", "value");
+        message.put("empty", "");
+        message.put("unicode", "\u00e4\u20ac\ud83d\ude00");
+
+        assertEquals(message, codec.decode(codec.encode(message)));
+    }
+
+    @Test
+    public void roundTripsMapWithoutFileName() throws IOException {
+        Map<String, String> message = new HashMap<>();
+        message.put("key", "value");
+
+        assertEquals(message, codec.decode(codec.encode(message)));
+    }
+
+    @Test
+    public void roundTripsBatch() throws IOException {
+        Map<String, String> first = new HashMap<>();
+        first.put("##FILENAME##", "a.properties");
+        first.put("a", "1");
+        Map<String, String> second = new HashMap<>();
+        second.put("##FILENAME##", "b.properties");
+        List<Map<String, String>> batch = Arrays.asList(first, second);
+
+        byte[] payload = codec.encodeBatch(batch);
+
+        assertEquals(batch, codec.decodeBatch(payload, 0, payload.length));
+    }
+
+    @Test
+    public void rejectsEntryCountLargerThanPayload() {
+        // version, no file name, entry count 2^30 - 1 as a 5 byte varint, no entries
+        assertMalformed(new byte[] { BinaryMapCodec.VERSION, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x03 });
+    }
+
+    @Test
+    public void rejectsEntryCountOverflowingToNegative() {
+        // Integer.MAX_VALUE + 1 as a varint
+        assertMalformed(new byte[] { BinaryMapCodec.VERSION, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08 });
+        // Integer.MAX_VALUE
+        assertMalformed(new byte[] { BinaryMapCodec.VERSION, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+    }
+
+    @Test
+    public void rejectsTruncatedAndTrailingBytes() throws IOException {
+        Map<String, String> message = new HashMap<>();
+        message.put("key", "value");
+        byte[] payload = codec.encode(message);
+
+        assertMalformed(Arrays.copyOf(payload, payload.length - 1));
+        assertMalformed(Arrays.copyOf(payload, payload.length + 1));
+    }
+
+    @Test
+    public void rejectsUnknownVersionAndEmptyPayload() {
+        assertMalformed(new byte[] { 99, 0, 0 });
+        assertMalformed(new byte[0]);
+    }
+
+    @Test
+    public void rejectsBatchCountLargerThanPayload() {
+        byte[] payload = { 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+        try {
+            codec.decodeBatch(payload, 0, payload.length);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            // Malformed batch payload
+        }
+    }
+
+    private void assertMalformed(byte[] payload) {
+        try {
+            codec.decode(payload);
+            fail("Expected IOException for " + Arrays.toString(payload));
+        } catch (IOException expected) {
+            // Rejected like any other malformed frame
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class GroupCommitTest {
+
+    private static final String FILE = "hot.properties";
+
+    // What every write received: the merged properties, and whether they replace the file
+    private final List<Properties> writes = new CopyOnWriteArrayList<>();
+    private final List<Boolean> replaces = new CopyOnWriteArrayList<>();
+    private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+
+    @Test
+    public void updatesQueuedDuringAWriteAreMergedIntoOneWrite() throws Exception {
+        GroupCommit groupCommit = newGroupCommit(true, null);
+
+        Submitter leader = submit(groupCommit, props("a", "1"));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        Submitter second = submit(groupCommit, props("a", "2"));
+        awaitQueued(second);
+        Submitter third = submit(groupCommit, props("b", "1"));
+        awaitQueued(third);
+        releaseFirstWrite.countDown();
+
+        // Every request returns once its round is written, the queued ones after a single write
+        assertNull(leader.result());
+        assertNull(second.result());
+        assertNull(third.result());
+        assertEquals(2, writes.size());
+        assertEquals("2", writes.get(1).getProperty("a"));
+        assertEquals("1", writes.get(1).getProperty("b"));
+        assertFalse(replaces.get(1));
+    }
+
+    @Test
+    public void fullUpdateReplacesEarlierOnesOfItsRoundWithoutAppend() throws Exception {
+        GroupCommit groupCommit = newGroupCommit(false, null);
+
+        Submitter leader = submit(groupCommit, props("a", "1"));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        Submitter second = submit(groupCommit, props("a", "2"));
+        awaitQueued(second);
+        Submitter third = submit(groupCommit, props("b", "1"));
+        awaitQueued(third);
+        releaseFirstWrite.countDown();
+
+        assertNull(leader.result());
+        assertNull(third.result());
+        Properties merged = writes.get(1);
+        assertNull(merged.getProperty("a"));
+        assertEquals("1", merged.getProperty("b"));
+        assertTrue(replaces.get(1));
+    }
+
+    @Test
+    public void failedWriteFailsEveryUpdateOfItsRound() throws Exception {
+        GroupCommit groupCommit = newGroupCommit(true, new IOException("disk full"));
+
+        Submitter leader = submit(groupCommit, props("a", "1"));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        Submitter second = submit(groupCommit, props("b", "1"));
+        awaitQueued(second);
+        Submitter third = submit(groupCommit, props("c", "1"));
+        awaitQueued(third);
+        releaseFirstWrite.countDown();
+
+        assertNull(leader.result());
+        assertEquals("disk full", second.result().getMessage());
+        assertEquals("disk full", third.result().getMessage());
+    }
+
+    @Test
+    public void exclusiveActionRunsInItsPlaceBetweenRounds() throws Exception {
+        GroupCommit groupCommit = newGroupCommit(true, null);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        Submitter leader = submit(groupCommit, props("a", "1"));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        Submitter before = submit(groupCommit, props("b", "1"));
+        awaitQueued(before);
+        Submitter action = new Submitter(() -> groupCommit.exclusive(FILE, () -> order.add("action after " + writes.size())));
+        awaitQueued(action);
+        Submitter after = submit(groupCommit, props("c", "1"));
+        awaitQueued(after);
+        releaseFirstWrite.countDown();
+
+        assertNull(leader.result());
+        assertNull(before.result());
+        assertNull(action.result());
+        assertNull(after.result());
+        assertEquals(List.of("action after 2"), order);
+        assertEquals(3, writes.size());
+        assertEquals("1", writes.get(2).getProperty("c"));
+    }
+
+    // The first write blocks until releaseFirstWrite, later writes fail with laterFailure if set
+    private GroupCommit newGroupCommit(boolean appendToFile, IOException laterFailure) throws IOException {
+        Properties config = new Properties();
+        config.setProperty("store.directory", Files.createTempDirectory("group-commit-test").toString());
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", Files.createTempFile("group-commit-test", ".log").toString());
+        PropertyStore store = PropertyStore.forConfig(config);
+        return new GroupCommit(4, appendToFile, (propFileName, merged, removedKeys, replace, flushBeforeReturn) -> {
+            Properties copy = new Properties();
+            copy.putAll(merged);
+            writes.add(copy);
+            replaces.add(replace);
+            if (writes.size() == 1) {
+                firstWriteStarted.countDown();
+                try {
+                    releaseFirstWrite.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (laterFailure != null) {
+                throw laterFailure;
+            }
+        }, store);
+    }
+
+    private static Submitter submit(GroupCommit groupCommit, Properties properties) {
+        return new Submitter(() -> groupCommit.submit(FILE, properties, Set.of(), null, null, false));
+    }
+
+    // A request waiting for its round is parked in CompletableFuture.join()
+    private static void awaitQueued(Submitter submitter) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (submitter.thread.getState() != Thread.State.WAITING) {
+            assertFalse("Request was not queued", System.nanoTime() > deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static Properties props(String key, String value) {
+        Properties properties = new Properties();
+        properties.setProperty(key, value);
+        return properties;
+    }
+
+    private interface Request {
+        void run() throws Exception;
+    }
+
+    // Runs one request on its own thread, like a ServerLogic worker
+    private static final class Submitter {
+        final Thread thread;
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Submitter(Request request) {
+            this.thread = new Thread(() -> {
+                try {
+                    request.run();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+        }
+
+        // null when the request returned normally
+        Exception result() throws InterruptedException {
+            thread.join(5000);
+            assertFalse("Request did not return", thread.isAlive());
+            return failure.get();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PropertyJournalTest {
+
+    private static final String FILE = "journaled.properties";
+    private static final int COMPACT_BYTES = 256;
+
+    private Path directory;
+
+    @Test
+    public void tornTailIsDroppedAndLaterRecordsReplay() throws Exception {
+        PropertyStore store = newStore();
+        store.store(FILE, props("a", "1"), false);
+        assertTrue(store.storeSynced(FILE, props("b", "2"), Set.of(), null, "h1", false));
+
+        // A crash in the middle of an append leaves a record without its commit line
+        Files.write(journal(), "c=3\n#comm".getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+
+        // The next append cuts the torn record off, then puts the journal over the compaction size
+        assertTrue(store.storeSynced(FILE, props("d", "x".repeat(COMPACT_BYTES)), Set.of("a"), "h1", "h2", false));
+        awaitCompaction();
+
+        Properties snapshot = snapshot();
+        assertNull(snapshot.getProperty("a"));
+        assertEquals("2", snapshot.getProperty("b"));
+        assertNull(snapshot.getProperty("c"));
+        assertEquals(COMPACT_BYTES, snapshot.getProperty("d").length());
+    }
+
+    @Test
+    public void keyPutAgainAfterItsRemovalSurvivesReplay() throws Exception {
+        PropertyStore store = newStore();
+        assertTrue(store.storeSynced(FILE, props("a", "1"), Set.of(), null, "h1", false));
+        assertTrue(store.storeSynced(FILE, new Properties(), Set.of("a"), "h1", "h2", false));
+        assertTrue(store.storeSynced(FILE, props("a", "again"), Set.of(), "h2", "h3", false));
+
+        assertTrue(store.storeSynced(FILE, props("pad", "x".repeat(COMPACT_BYTES)), Set.of(), "h3", "h4", false));
+        awaitCompaction();
+
+        assertEquals("again", snapshot().getProperty("a"));
+    }
+
+    private PropertyStore newStore() throws IOException {
+        directory = Files.createTempDirectory("property-journal-test");
+        Properties config = new Properties();
+        config.setProperty("store.directory", directory.toString());
+        config.setProperty("store.engine", "journal");
+        config.setProperty("store.journal.compact.bytes", String.valueOf(COMPACT_BYTES));
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", directory.resolve("server.log").toString());
+        return PropertyStore.forConfig(config);
+    }
+
+    private Path journal() {
+        return directory.resolve("journal").resolve(FILE + ".journal");
+    }
+
+    // Compaction runs in the background and empties the journal once the snapshot is replaced
+    private void awaitCompaction() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Files.size(journal()) > 0) {
+            assertFalse("Journal was not compacted", System.nanoTime() > deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Properties snapshot() throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(FILE), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Properties props(String key, String value) {
+        Properties properties = new Properties();
+        properties.setProperty(key, value);
+        return properties;
+    }
+}
@@ -0,0 +1,146 @@
+package com.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PropertyStoreTest {
+
+    private static final String FILE = "delta.properties";
+
+    private Path directory;
+
+    @Test
+    public void deltaOnOtherBaseIsAnsweredWithResync() throws Exception {
+        PropertyStore store = newStore();
+        assertTrue(store.storeSynced(FILE, props("a", "1"), Set.of(), null, "h1", false));
+
+        assertFalse(store.storeSynced(FILE, props("a", "2"), Set.of(), "h0", "h2", false));
+        assertEquals("1", stored().getProperty("a"));
+
+        assertTrue(store.storeSynced(FILE, props("a", "2"), Set.of(), "h1", "h2", false));
+        assertEquals("2", stored().getProperty("a"));
+        // h1 is no longer the stored version
+        assertFalse(store.storeSynced(FILE, props("a", "3"), Set.of(), "h1", "h3", false));
+        assertEquals("2", stored().getProperty("a"));
+    }
+
+    @Test
+    public void deltaWithoutKnownVersionIsAnsweredWithResync() throws Exception {
+        PropertyStore store = newStore();
+        // A whole file without a hash leaves the version unknown
+        assertTrue(store.storeSynced(FILE, props("a", "1"), Set.of(), null, null, false));
+
+        assertFalse(store.storeSynced(FILE, props("a", "2"), Set.of(), "h1", "h2", false));
+    }
+
+    @Test
+    public void onlyOneOfConcurrentDeltasOnTheSameBaseIsApplied() throws Exception {
+        PropertyStore store = newStore();
+        assertTrue(store.storeSynced(FILE, props("a", "0"), Set.of(), null, "base", false));
+
+        int writers = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        try {
+            List<Callable<Boolean>> deltas = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                String value = String.valueOf(i + 1);
+                deltas.add(() -> store.storeSynced(FILE, props("a", value), Set.of(), "base", "next" + value, false));
+            }
+            int applied = 0;
+            for (Future<Boolean> result : pool.invokeAll(deltas)) {
+                applied += result.get() ? 1 : 0;
+            }
+            assertEquals(1, applied);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void deltaRemovesKeysInAppendMode() throws Exception {
+        PropertyStore store = newStore();
+        Properties whole = props("a", "1");
+        whole.setProperty("b", "1");
+        assertTrue(store.storeSynced(FILE, whole, Set.of(), null, "h1", false));
+
+        assertTrue(store.storeSynced(FILE, props("a", "2"), Set.of("b"), "h1", "h2", false));
+
+        Properties stored = stored();
+        assertEquals("2", stored.getProperty("a"));
+        assertNull(stored.getProperty("b"));
+        // And the next delta builds on that version
+        assertTrue(store.storeSynced(FILE, props("c", "1"), Set.of(), "h2", "h3", false));
+    }
+
+    @Test
+    public void unknownDurabilityStoresLikeNone() throws Exception {
+        PropertyStore store = newStore("store.durability", "per_wirte");
+
+        store.store(FILE, props("a", "1"), false);
+
+        assertEquals("1", stored().getProperty("a"));
+    }
+
+    @Test
+    public void lockFilesAreKeptApartFromStoredFiles() throws Exception {
+        PropertyStore store = newStore();
+
+        store.store(FILE, props("a", "1"), false);
+        store.store(FILE + ".lock", props("b", "2"), false);
+        store.store(FILE, props("c", "3"), false);
+
+        assertEquals("1", stored().getProperty("a"));
+        assertEquals("3", stored().getProperty("c"));
+        assertEquals("2", stored(FILE + ".lock").getProperty("b"));
+        assertTrue(Files.exists(directory.resolve("locks").resolve(FILE + ".lock")));
+    }
+
+    // A store of its own per test, stores are shared per directory
+    private PropertyStore newStore(String... settings) throws IOException {
+        directory = Files.createTempDirectory("property-store-test");
+        Properties config = new Properties();
+        for (int i = 0; i < settings.length; i += 2) {
+            config.setProperty(settings[i], settings[i + 1]);
+        }
+        config.setProperty("store.directory", directory.toString());
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", directory.resolve("server.log").toString());
+        return PropertyStore.forConfig(config);
+    }
+
+    private Properties stored() throws IOException {
+        return stored(FILE);
+    }
+
+    private Properties stored(String fileName) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(fileName), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Properties props(String key, String value) {
+        Properties properties = new Properties();
+        properties.setProperty(key, value);
+        return properties;
+    }
+}
@@ -0,0 +1,160 @@
+package com.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class StoredFileCacheTest {
+
+    private static final Path A = Paths.get("a.properties");
+    private static final Path B = Paths.get("b.properties");
+    // Never flushed by the write delay during a test, only by eviction and flushAll
+    private static final long WRITE_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // What the flushes wrote, per file
+    private final Map<Path, Properties> disk = new ConcurrentHashMap<>();
+
+    @Test
+    public void updateDuringEvictionIsNotLost() throws Exception {
+        CountDownLatch flushStarted = new CountDownLatch(1);
+        CountDownLatch releaseFlush = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        StoredFileCache cache = new StoredFileCache(budgetForOneFile(), WRITE_DELAY_MILLIS, entry -> {
+            if (entry.path.equals(A) && first.getAndSet(false)) {
+                flushStarted.countDown();
+                await(releaseFlush);
+            }
+            write(entry);
+        }, store());
+
+        merge(cache, A, "first", "1");
+        merge(cache, B, "other", "1"); // Over budget, A is evicted and its flush blocks
+        assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+
+        Thread update = new Thread(() -> merge(cache, A, "second", "2"));
+        update.start();
+        releaseFlush.countDown();
+        update.join(5000);
+        cache.flushAll();
+
+        Properties stored = disk.get(A);
+        assertEquals("1", stored.getProperty("first"));
+        assertEquals("2", stored.getProperty("second"));
+    }
+
+    @Test
+    public void failedEvictionKeepsCachedProperties() throws Exception {
+        CountDownLatch flushFailed = new CountDownLatch(1);
+        AtomicBoolean failNext = new AtomicBoolean(true);
+        StoredFileCache cache = new StoredFileCache(budgetForOneFile(), WRITE_DELAY_MILLIS, entry -> {
+            if (entry.path.equals(A) && failNext.getAndSet(false)) {
+                flushFailed.countDown();
+                throw new IOException("disk full");
+            }
+            write(entry);
+        }, store());
+
+        merge(cache, A, "first", "1");
+        StoredFileCache.Entry cached = cache.get(A, "a.properties");
+        merge(cache, B, "other", "1"); // Over budget, writing A fails
+        assertTrue(flushFailed.await(5, TimeUnit.SECONDS));
+
+        // Still the cached entry, during and after the failed write
+        assertSame(cached, cache.get(A, "a.properties"));
+        merge(cache, A, "second", "2");
+        cache.flushAll();
+
+        Properties stored = disk.get(A);
+        assertEquals("1", stored.getProperty("first"));
+        assertEquals("2", stored.getProperty("second"));
+    }
+
+    @Test
+    public void evictedFileIsReadAgainFromDisk() throws Exception {
+        CountDownLatch evicted = new CountDownLatch(1);
+        StoredFileCache cache = new StoredFileCache(budgetForOneFile(), WRITE_DELAY_MILLIS, entry -> {
+            write(entry);
+            if (entry.path.equals(A)) {
+                evicted.countDown();
+            }
+        }, store());
+
+        merge(cache, A, "first", "1");
+        merge(cache, B, "other", "1");
+        assertTrue(evicted.await(5, TimeUnit.SECONDS));
+        merge(cache, A, "second", "2");
+        cache.flushAll();
+
+        assertEquals("1", disk.get(A).getProperty("first"));
+        assertEquals("2", disk.get(A).getProperty("second"));
+    }
+
+    // Only logs the flush errors
+    private static PropertyStore store() throws IOException {
+        Path directory = Files.createTempDirectory("stored-file-cache-test");
+        Properties config = new Properties();
+        config.setProperty("store.directory", directory.toString());
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", directory.resolve("server.log").toString());
+        return PropertyStore.forConfig(config);
+    }
+
+    // One small file fits, a second one puts the cache over its budget
+    private static long budgetForOneFile() {
+        Properties one = new Properties();
+        one.put("first", "1");
+        return StoredFileCache.sizeOf(one) + 50;
+    }
+
+    // The protocol PropertyStore.mergeCached follows
+    private void merge(StoredFileCache cache, Path path, String key, String value) {
+        while (true) {
+            StoredFileCache.Entry entry = cache.get(path, path.toString());
+            entry.lock.lock();
+            try {
+                if (entry.evicted) {
+                    continue;
+                }
+                if (entry.properties == null) {
+                    entry.properties = new Properties();
+                    Properties stored = disk.get(path);
+                    if (stored != null) {
+                        entry.properties.putAll(stored);
+                    }
+                }
+                entry.properties.put(key, value);
+                cache.changed(entry, StoredFileCache.sizeOf(entry.properties));
+                return;
+            } finally {
+                entry.lock.unlock();
+            }
+        }
+    }
+
+    private void write(StoredFileCache.Entry entry) {
+        Properties copy = new Properties();
+        copy.putAll(entry.properties);
+        disk.put(entry.path, copy);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class StreamedTransfersTest {
+
+    private static final String FILE = "streamed.properties";
+
+    private Path directory;
+
+    @Test
+    public void resentChunkIsStagedOnlyOnce() throws Exception {
+        PropertyStore store = newStore();
+
+        assertTrue(store.storeChunk(FILE, "t1", 0, false, props("a", "1")));
+        // The ack of chunk 0 was lost, the client resends it before going on
+        assertTrue(store.storeChunk(FILE, "t1", 0, false, props("a", "1")));
+        assertTrue(store.storeChunk(FILE, "t1", 1, true, props("b", "2")));
+
+        assertEquals(List.of("a=1", "b=2"), entries());
+        assertEquals("1", stored().getProperty("a"));
+        assertEquals("2", stored().getProperty("b"));
+    }
+
+    @Test
+    public void resentLastChunkIsNotMergedAgain() throws Exception {
+        PropertyStore store = newStore();
+        assertTrue(store.storeChunk(FILE, "t1", 0, false, props("a", "1")));
+        assertTrue(store.storeChunk(FILE, "t1", 1, true, props("b", "2")));
+
+        // The transfer is over, the client has to start again to know what was written
+        assertFalse(store.storeChunk(FILE, "t1", 1, true, props("b", "2")));
+
+        assertEquals(List.of("a=1", "b=2"), entries());
+    }
+
+    @Test
+    public void missingChunkFailsTheTransfer() throws Exception {
+        PropertyStore store = newStore();
+        assertTrue(store.storeChunk(FILE, "t1", 0, false, props("a", "1")));
+
+        assertFalse(store.storeChunk(FILE, "t1", 2, true, props("c", "3")));
+        assertFalse(store.storeChunk(FILE, "unknown", 1, true, props("c", "3")));
+
+        assertFalse(Files.exists(directory.resolve(FILE)));
+    }
+
+    private PropertyStore newStore() throws IOException {
+        directory = Files.createTempDirectory("streamed-transfers-test");
+        Properties config = new Properties();
+        config.setProperty("store.directory", directory.toString());
+        config.setProperty("log.console", "false");
+        config.setProperty("log.file.path", directory.resolve("server.log").toString());
+        return PropertyStore.forConfig(config);
+    }
+
+    // Entry lines of the stored file, without its header comments
+    private List<String> entries() throws IOException {
+        return Files.readAllLines(directory.resolve(FILE), StandardCharsets.ISO_8859_1).stream()
+                .filter(line -> !line.startsWith("#") && !line.isEmpty())
+                .sorted()
+                .toList();
+    }
+
+    private Properties stored() throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(FILE), StandardCharsets.ISO_8859_1)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Properties props(String key, String value) {
+        Properties properties = new Properties();
+        properties.setProperty(key, value);
+        return properties;
+    }
+}